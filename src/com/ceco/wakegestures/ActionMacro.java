@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Intent;
+
+/**
+ * Ordered list of action steps triggered by single gesture
+ *
+ * Macro spec consists of steps separated by '|'. Each step has form "p:URI" for
+ * independent step or "s:URI" for step depending on all steps before it.
+ * Consecutive independent steps are executed concurrently, dependent steps
+ * wait for all preceding steps to finish.
+ *
+ * Macro is part of immutable configuration snapshot and may be executed several times
+ * at once, so all state of a run, e.g. step latencies, is kept by its Execution.
+ *
+ * Example: "s:&lt;screen on&gt;|s:&lt;unlock&gt;|p:&lt;app&gt;|p:&lt;torch&gt;"
+ */
+public class ActionMacro {
+
+    /**
+     * Interface for executing a single macro step
+     */
+    public interface StepExecutor {
+        void executeStep(Intent step);
+    }
+
+    /**
+     * Interface for receiving latencies of finished macro run
+     */
+    public interface FinishListener {
+        /**
+         * Called on thread that executed last step
+         * @param macro macro that finished
+         * @param totalNs time from start of execution till last step finished
+         * @param stepLatencyNs execution time of each step; owned by listener
+         */
+        void onMacroFinished(ActionMacro macro, long totalNs, long[] stepLatencyNs);
+    }
+
+    private final Intent[] mSteps;
+    private final boolean[] mIndependent;
+
+    private ActionMacro(List<Intent> steps, List<Boolean> independent) {
+        final int count = steps.size();
+        mSteps = steps.toArray(new Intent[count]);
+        mIndependent = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            mIndependent[i] = independent.get(i);
+        }
+    }
+
+    /**
+     * Parses macro spec
+     * @param spec macro specification
+     * @return macro or null if spec contains no valid step
+     */
+    public static ActionMacro parse(String spec) {
+        if (spec == null) return null;
+
+        List<Intent> steps = new ArrayList<Intent>();
+        List<Boolean> independent = new ArrayList<Boolean>();
+        for (String step : spec.split("\\|")) {
+            if (step.length() < 3 || step.charAt(1) != ':' ||
+                    (step.charAt(0) != 'p' && step.charAt(0) != 's')) {
+                ModWakeGestures.log("Invalid macro step: " + step);
+                continue;
+            }
+            try {
+                steps.add(Intent.parseUri(step.substring(2), 0));
+                independent.add(step.charAt(0) == 'p');
+            } catch (URISyntaxException e) {
+                ModWakeGestures.log("Error parsing macro step uri: " + e.getMessage());
+            }
+        }
+
+        return (steps.isEmpty() ? null : new ActionMacro(steps, independent));
+    }
+
+    public int getStepCount() {
+        return mSteps.length;
+    }
+
+    public Intent getStep(int index) {
+        return mSteps[index];
+    }
+
+    public boolean isIndependent(int index) {
+        return mIndependent[index];
+    }
+
+    /**
+     * Executes macro steps asynchronously. No executor thread is blocked waiting for
+     * other steps - each group of steps schedules next group when its last step finishes.
+     * @param serialExecutor executor dependent steps are run on
+     * @param parallelExecutor executor groups of independent steps are run on; needs more than
+     * one thread for the steps to actually run concurrently
+     * @param stepExecutor executes individual steps
+     * @param listener optional listener notified when all steps have finished
+     */
+    public void execute(Executor serialExecutor, Executor parallelExecutor,
+            StepExecutor stepExecutor, FinishListener listener) {
+        new Execution(serialExecutor, parallelExecutor, stepExecutor, listener).runGroup(0);
+    }
+
+    /**
+     * Single run of macro
+     */
+    private class Execution {
+        private final Executor mSerialExecutor;
+        private final Executor mParallelExecutor;
+        private final StepExecutor mStepExecutor;
+        private final FinishListener mListener;
+        private final long mStartNs = System.nanoTime();
+        // each step writes own slot; group completion publishes them via atomic counter
+        private final long[] mStepLatencyNs = new long[mSteps.length];
+
+        Execution(Executor serialExecutor, Executor parallelExecutor,
+                StepExecutor stepExecutor, FinishListener listener) {
+            mSerialExecutor = serialExecutor;
+            mParallelExecutor = parallelExecutor;
+            mStepExecutor = stepExecutor;
+            mListener = listener;
+        }
+
+        void runGroup(final int start) {
+            if (start >= mSteps.length) {
+                if (mListener != null) {
+                    mListener.onMacroFinished(ActionMacro.this, System.nanoTime() - mStartNs,
+                            mStepLatencyNs);
+                }
+                return;
+            }
+
+            // group is either single dependent step or run of consecutive independent steps
+            int end = start + 1;
+            if (mIndependent[start]) {
+                while (end < mSteps.length && mIndependent[end]) end++;
+            }
+
+            final Executor executor = (mIndependent[start] ? mParallelExecutor : mSerialExecutor);
+            final int next = end;
+            final AtomicInteger remaining = new AtomicInteger(end - start);
+            for (int i = start; i < end; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long stepStartNs = System.nanoTime();
+                        try {
+                            mStepExecutor.executeStep(mSteps[index]);
+                        } catch (Throwable t) {
+                            ModWakeGestures.log("Error executing macro step " + index + ": " + t.getMessage());
+                        } finally {
+                            mStepLatencyNs[index] = System.nanoTime() - stepStartNs;
+                            if (remaining.decrementAndGet() == 0) {
+                                runGroup(next);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
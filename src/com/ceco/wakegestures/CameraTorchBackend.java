@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+
+/**
+ * Torch backend using legacy Camera API
+ *
+ * Camera, its parameters and preview surface are kept open until released
+ * so that subsequent toggles avoid camera bring-up.
+ */
+public class CameraTorchBackend implements ITorchBackend {
+    private Camera mCamera;
+    private Camera.Parameters mCamParams;
+    private SurfaceTexture mSurfaceTexture;
+
+    @Override
+    public String getName() {
+        return "Camera";
+    }
+
+    @Override
+    public void setTorch(boolean on) throws Exception {
+        if (on) {
+            if (mCamera == null) {
+                mCamera = Camera.open();
+                mCamParams = mCamera.getParameters();
+                mSurfaceTexture = new SurfaceTexture(0);
+                mCamera.setPreviewTexture(mSurfaceTexture);
+            }
+            mCamParams.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
+            mCamera.setParameters(mCamParams);
+            mCamera.startPreview();
+        } else if (mCamera != null) {
+            mCamParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+            mCamera.setParameters(mCamParams);
+            mCamera.stopPreview();
+        }
+    }
+
+    @Override
+    public boolean isHoldingResources() {
+        return (mCamera != null);
+    }
+
+    @Override
+    public void release() {
+        if (mCamera != null) {
+            try {
+                mCamera.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mCamera = null;
+        }
+        mCamParams = null;
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import android.content.SharedPreferences;
+import android.os.Environment;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Compact binary configuration file shared between settings app and system_server
+ *
+ * Settings app writes the file atomically (temp file + rename) whenever configuration changes.
+ * System_server maps it read-only and compares version counter and per-slot generations
+ * with what it has loaded, so that only slots that actually changed get decoded.
+ *
+ * Layout (big endian):
+ *   header:  int magic, short format, short slotCount, int version, int flags, 16 bytes reserved
+ *   slots:   slotCount * { int generation, int offset, int uriLength, int rulesLength }
+ *   payload: UTF-8 encoded strings referenced by slots; length -1 means null
+ *
+ * Slot index is gesture ordinal for single gestures and GESTURE_SLOTS + ordinal for double gestures.
+ */
+public class ConfigStore {
+    private static final int MAGIC = 0x57474346; // WGCF
+    private static final short FORMAT = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int GESTURE_SLOTS = 5;
+    public static final int SLOT_COUNT = GESTURE_SLOTS * 2;
+
+    public static final int FLAG_POCKET_MODE = 1;
+    public static final int FLAG_ACTIVE_MUSIC = 1 << 1;
+
+    public static final String FILE_NAME = "wg_config.bin";
+
+    private static final String[] SLOT_PREF_KEYS = new String[] {
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_UP,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN,
+        WakeGestureSettings.PREF_KEY_WG_DOUBLETAP,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT_DBL,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT_DBL,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_UP_DBL,
+        WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN_DBL,
+        WakeGestureSettings.PREF_KEY_WG_DOUBLETAP_DBL
+    };
+
+    private final ByteBuffer mBuffer;
+    private final int mVersion;
+    private final int mFlags;
+
+    private ConfigStore(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (mBuffer.limit() < HEADER_SIZE + SLOT_COUNT * SLOT_SIZE ||
+                mBuffer.getInt(0) != MAGIC || mBuffer.getShort(4) != FORMAT ||
+                mBuffer.getShort(6) != SLOT_COUNT) {
+            throw new IOException("Invalid config store header");
+        }
+        mVersion = mBuffer.getInt(8);
+        mFlags = mBuffer.getInt(12);
+    }
+
+    /**
+     * @return config store file as seen from any process (settings app or system_server)
+     */
+    public static File getFile() {
+        return new File(Environment.getDataDirectory(), "data/" + ModWakeGestures.PACKAGE_NAME +
+                "/files/" + FILE_NAME);
+    }
+
+    public static int getSlot(WakeGesture gesture, boolean dbl) {
+        return (dbl ? GESTURE_SLOTS : 0) + gesture.ordinal();
+    }
+
+    public static WakeGesture getSlotGesture(int slot) {
+        return WakeGesture.values()[slot % GESTURE_SLOTS];
+    }
+
+    public static boolean isDoubleSlot(int slot) {
+        return slot >= GESTURE_SLOTS;
+    }
+
+    /**
+     * Maps config store file read-only
+     * @param f config store file
+     * @return mapped config store
+     * @throws IOException when file does not exist or has invalid format
+     */
+    public static ConfigStore open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // mapping stays valid after channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ConfigStore(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (mFlags & flag) == flag;
+    }
+
+    public int getSlotGeneration(int slot) {
+        return mBuffer.getInt(slotPos(slot));
+    }
+
+    public String getSlotUri(int slot) {
+        final int pos = slotPos(slot);
+        return decodeString(mBuffer.getInt(pos + 4), mBuffer.getInt(pos + 8));
+    }
+
+    public String getSlotRules(int slot) {
+        final int pos = slotPos(slot);
+        final int uriLength = mBuffer.getInt(pos + 8);
+        return decodeString(mBuffer.getInt(pos + 4) + Math.max(uriLength, 0),
+                mBuffer.getInt(pos + 12));
+    }
+
+    private static int slotPos(int slot) {
+        if (slot < 0 || slot >= SLOT_COUNT)
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private String decodeString(int offset, int length) {
+        if (length < 0) return null;
+        byte[] data = new byte[length];
+        ByteBuffer dup = mBuffer.duplicate();
+        dup.position(offset);
+        dup.get(data);
+        return new String(data, UTF8);
+    }
+
+    /**
+     * Writes configuration from preferences to config store file atomically.
+     * Version counter is incremented and slot generations are incremented only
+     * for slots whose content changed compared to existing file. When there is no valid
+     * existing file, counters are seeded from current time rather than restarted so that
+     * they never match what system_server loaded from a file that got lost.
+     * Must be called from settings app.
+     * @param f config store file
+     * @param prefs preferences to write
+     * @return version of written config
+     * @throws IOException on write error
+     */
+    public static int write(File f, SharedPreferences prefs) throws IOException {
+        ConfigStore prev = null;
+        try {
+            if (f.exists()) {
+                prev = open(f);
+            }
+        } catch (IOException e) {
+            // invalid file gets overwritten
+        }
+
+        final String rulesSuffix = WakeGestureSettings.PREF_KEY_RULES_SUFFIX;
+        byte[][] uris = new byte[SLOT_COUNT][];
+        byte[][] rules = new byte[SLOT_COUNT][];
+        int payloadSize = 0;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            uris[i] = encodeString(prefs.getString(SLOT_PREF_KEYS[i], null));
+            rules[i] = encodeString(prefs.getString(SLOT_PREF_KEYS[i] + rulesSuffix, null));
+            payloadSize += (uris[i] == null ? 0 : uris[i].length) +
+                    (rules[i] == null ? 0 : rules[i].length);
+        }
+
+        int flags = 0;
+        if (prefs.getBoolean(WakeGestureSettings.PREF_KEY_POCKET_MODE, false)) {
+            flags |= FLAG_POCKET_MODE;
+        }
+        if (prefs.getBoolean(WakeGestureSettings.PREF_KEY_ACTIVE_MUSIC, false)) {
+            flags |= FLAG_ACTIVE_MUSIC;
+        }
+
+        final int seed = (int) (System.currentTimeMillis() / 1000);
+        final int version = (prev == null ? seed : prev.getVersion() + 1);
+        final int payloadStart = HEADER_SIZE + SLOT_COUNT * SLOT_SIZE;
+        ByteBuffer buf = ByteBuffer.allocate(payloadStart + payloadSize);
+        buf.putInt(MAGIC).putShort(FORMAT).putShort((short) SLOT_COUNT)
+            .putInt(version).putInt(flags);
+        buf.position(HEADER_SIZE);
+
+        int offset = payloadStart;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            int generation = seed;
+            if (prev != null) {
+                generation = prev.getSlotGeneration(i);
+                if (!equalsString(uris[i], prev.getSlotUri(i)) ||
+                        !equalsString(rules[i], prev.getSlotRules(i))) {
+                    generation++;
+                }
+            }
+            buf.putInt(generation);
+            buf.putInt(offset);
+            buf.putInt(uris[i] == null ? -1 : uris[i].length);
+            buf.putInt(rules[i] == null ? -1 : rules[i].length);
+            offset += (uris[i] == null ? 0 : uris[i].length) +
+                    (rules[i] == null ? 0 : rules[i].length);
+        }
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (uris[i] != null) buf.put(uris[i]);
+            if (rules[i] != null) buf.put(rules[i]);
+        }
+
+        File dir = f.getParentFile();
+        dir.mkdirs();
+        dir.setExecutable(true, false);
+        File tmp = new File(dir, f.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(buf.array());
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        tmp.setReadable(true, false);
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp + " to " + f);
+        }
+
+        return version;
+    }
+
+    private static byte[] encodeString(String value) {
+        return (value == null ? null : value.getBytes(UTF8));
+    }
+
+    private static boolean equalsString(byte[] data, String value) {
+        if (data == null || value == null) return (data == null && value == null);
+        return value.equals(new String(data, UTF8));
+    }
+}
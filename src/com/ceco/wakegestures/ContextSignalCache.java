@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import android.app.KeyguardManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+
+/**
+ * Cache of context signals used as action preconditions
+ *
+ * Signals are kept up to date from broadcasts where possible (charging, keyguard
+ * invalidation). Signals without an event source (music active, keyguard showing)
+ * are polled at most once per TTL. Proximity sensor is never kept registered for
+ * the whole screen off period as that is exactly when the device sits in a pocket;
+ * it is sampled only for a short window after screen off and after each gesture
+ * and the sample expires after PROXIMITY_TTL_MS.
+ * Reading a signal on the gesture path is a plain field read in the common case.
+ */
+public class ContextSignalCache {
+    private static final long MUSIC_ACTIVE_TTL_MS = 2000;
+    private static final long KEYGUARD_TTL_MS = 5000;
+    private static final long PROXIMITY_SAMPLE_WINDOW_MS = 1000;
+    private static final long PROXIMITY_TTL_MS = 3000;
+
+    public static final int PROXIMITY_UNKNOWN = -1;
+    public static final int PROXIMITY_FAR = 0;
+    public static final int PROXIMITY_NEAR = 1;
+
+    private Context mContext;
+    private Object mPhoneWindowManager;
+    private Handler mHandler;
+    private KeyguardManager mKeyguardManager;
+    private SensorManager mSensorManager;
+    private Sensor mProxSensor;
+    private boolean mProxListenerRegistered;
+    private boolean mScreenOn = true;
+
+    private volatile boolean mMusicActive;
+    private volatile long mMusicActiveTime;
+    private volatile boolean mKeyguardShowing;
+    private volatile long mKeyguardTime;
+    private volatile boolean mCharging;
+    private volatile long mChargingTime;
+    private volatile int mProximity = PROXIMITY_UNKNOWN;
+    private volatile long mProximityTime;
+
+    // metrics
+    private volatile int mHits;
+    private volatile int mMisses;
+    private volatile long mMaxStalenessMs;
+
+    public ContextSignalCache(Context context, Object phoneWindowManager, Handler handler) {
+        mContext = context;
+        mPhoneWindowManager = phoneWindowManager;
+        mHandler = handler;
+        mKeyguardManager = (KeyguardManager) mContext.getSystemService(Context.KEYGUARD_SERVICE);
+
+        IntentFilter intentFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        intentFilter.addAction(Intent.ACTION_USER_PRESENT);
+        // ACTION_BATTERY_CHANGED is sticky so charging state is known right away
+        Intent batteryStatus = mContext.registerReceiver(mBroadcastReceiver, intentFilter, null, mHandler);
+        if (batteryStatus != null) {
+            updateCharging(batteryStatus);
+        }
+    }
+
+    /**
+     * Enables or disables proximity tracking. When enabled, proximity sensor is
+     * sampled briefly after screen off and after each gesture (see sampleProximity()).
+     */
+    public void setProximityTrackingEnabled(boolean enabled) {
+        if (enabled && mSensorManager == null) {
+            mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+            mProxSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+        } else if (!enabled && mSensorManager != null) {
+            mHandler.removeCallbacks(mProxSampleTimeout);
+            unregisterProximityListener(false);
+            mProxSensor = null;
+            mSensorManager = null;
+        }
+    }
+
+    /**
+     * Listens to proximity sensor for PROXIMITY_SAMPLE_WINDOW_MS so that gesture
+     * arriving shortly after can use cached sample. Does nothing while screen is on.
+     * Must be called on handler thread.
+     */
+    public void sampleProximity() {
+        if (mScreenOn || mSensorManager == null || mProxSensor == null) return;
+
+        registerProximityListener();
+        mHandler.removeCallbacks(mProxSampleTimeout);
+        mHandler.postDelayed(mProxSampleTimeout, PROXIMITY_SAMPLE_WINDOW_MS);
+    }
+
+    public boolean isProximityTrackingEnabled() {
+        return (mSensorManager != null && mProxSensor != null);
+    }
+
+    /**
+     * @return one of PROXIMITY_NEAR, PROXIMITY_FAR or PROXIMITY_UNKNOWN when there is no
+     * valid sample (e.g. sensor listener not delivered first event or sample expired)
+     */
+    public int getProximity() {
+        final int proximity = mProximity;
+        final long time = mProximityTime;
+        if (proximity == PROXIMITY_UNKNOWN || (!mProxListenerRegistered &&
+                (SystemClock.uptimeMillis() - time) > PROXIMITY_TTL_MS)) {
+            mMisses++;
+            return PROXIMITY_UNKNOWN;
+        }
+        recordHit(time);
+        return proximity;
+    }
+
+    public boolean isCharging() {
+        recordHit(mChargingTime);
+        return mCharging;
+    }
+
+    public boolean isMusicActive() {
+        final long now = SystemClock.uptimeMillis();
+        final long time = mMusicActiveTime;
+        if (time == 0 || (now - time) > MUSIC_ACTIVE_TTL_MS) {
+            mMisses++;
+            boolean active = false;
+            try {
+                active = (Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "isMusicActive");
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+            mMusicActive = active;
+            mMusicActiveTime = now;
+            return active;
+        }
+        recordHit(time);
+        return mMusicActive;
+    }
+
+    public boolean isKeyguardShowing() {
+        final long now = SystemClock.uptimeMillis();
+        final long time = mKeyguardTime;
+        if (time == 0 || (now - time) > KEYGUARD_TTL_MS) {
+            mMisses++;
+            boolean showing = false;
+            try {
+                showing = mKeyguardManager.isKeyguardLocked();
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+            mKeyguardShowing = showing;
+            mKeyguardTime = now;
+            return showing;
+        }
+        recordHit(time);
+        return mKeyguardShowing;
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    public long getMaxStalenessMs() {
+        return mMaxStalenessMs;
+    }
+
+    public void resetMetrics() {
+        mHits = 0;
+        mMisses = 0;
+        mMaxStalenessMs = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ContextSignalCache: hits=" + mHits + "; misses=" + mMisses +
+                "; maxStalenessMs=" + mMaxStalenessMs + "; music=" + mMusicActive +
+                "; keyguard=" + mKeyguardShowing + "; charging=" + mCharging +
+                "; proximity=" + mProximity;
+    }
+
+    private void recordHit(long sampleTime) {
+        mHits++;
+        if (sampleTime != 0) {
+            final long staleness = SystemClock.uptimeMillis() - sampleTime;
+            if (staleness > mMaxStalenessMs) {
+                mMaxStalenessMs = staleness;
+            }
+        }
+    }
+
+    private void updateCharging(Intent batteryStatus) {
+        final int plugged = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        mCharging = (plugged != 0);
+        mChargingTime = SystemClock.uptimeMillis();
+    }
+
+    private void registerProximityListener() {
+        if (mProxListenerRegistered || mSensorManager == null || mProxSensor == null) return;
+
+        mProxListenerRegistered = mSensorManager.registerListener(mProxSensorListener,
+                mProxSensor, SensorManager.SENSOR_DELAY_NORMAL, mHandler);
+        if (ModWakeGestures.DEBUG) ModWakeGestures.log("Proximity listener registered: " +
+                mProxListenerRegistered);
+    }
+
+    /**
+     * @param keepSample whether last sample stays valid for PROXIMITY_TTL_MS
+     */
+    private void unregisterProximityListener(boolean keepSample) {
+        if (!mProxListenerRegistered) return;
+
+        try {
+            mSensorManager.unregisterListener(mProxSensorListener, mProxSensor);
+        } catch (Throwable t) {
+            // should never happen
+        }
+        mProxListenerRegistered = false;
+        if (keepSample && mProximity != PROXIMITY_UNKNOWN) {
+            // sensor reports changes only so last sample was valid till now
+            mProximityTime = SystemClock.uptimeMillis();
+        } else {
+            mProximity = PROXIMITY_UNKNOWN;
+            mProximityTime = 0;
+        }
+        if (ModWakeGestures.DEBUG) ModWakeGestures.log("Proximity listener unregistered");
+    }
+
+    private Runnable mProxSampleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            unregisterProximityListener(true);
+        }
+    };
+
+    private SensorEventListener mProxSensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (mProxSensor == null) return;
+            final boolean screenCovered =
+                    event.values[0] < (mProxSensor.getMaximumRange() * 0.1f);
+            mProximity = screenCovered ? PROXIMITY_NEAR : PROXIMITY_FAR;
+            mProximityTime = SystemClock.uptimeMillis();
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log(
+                    "mProxSensorListener: " + event.values[0] +
+                    "; screenCovered=" + screenCovered);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+    };
+
+    private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (action.equals(Intent.ACTION_BATTERY_CHANGED)) {
+                updateCharging(intent);
+            } else if (action.equals(Intent.ACTION_SCREEN_OFF)) {
+                mScreenOn = false;
+                // keyguard gets shown on screen off
+                mKeyguardTime = 0;
+                sampleProximity();
+            } else if (action.equals(Intent.ACTION_SCREEN_ON)) {
+                mScreenOn = true;
+                mKeyguardTime = 0;
+                mHandler.removeCallbacks(mProxSampleTimeout);
+                unregisterProximityListener(false);
+            } else if (action.equals(Intent.ACTION_USER_PRESENT)) {
+                mKeyguardShowing = false;
+                mKeyguardTime = SystemClock.uptimeMillis();
+            }
+        }
+    };
+}
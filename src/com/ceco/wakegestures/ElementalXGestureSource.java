@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.File;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * ElementalX kernel wake gestures
+ *
+ * Gestures are reported by virtual "wake_gesture" input device as EV_REL code 11
+ * with gesture id as value. Enabled gestures are configured via /sys/android_touch.
+ */
+public class ElementalXGestureSource extends GestureSource {
+    private static final String CONFIG_PATH_WG = "/sys/android_touch/wake_gestures";
+    private static final String CONFIG_PATH_SWEEP = "/sys/android_touch/sweep2wake";
+    private static final String CONFIG_PATH_DT = "/sys/android_touch/doubletap2wake";
+    private static final String INPUT_PATH = "/sys/devices/virtual/input";
+    private static final String DEVICE_NAME = "wake_gesture";
+    private static final int EV_CODE = 11; // Wake gesture event
+
+    private static final int[] MAPPING = new int[] {
+        EV_REL, EV_CODE, 1, WakeGesture.SWEEP_RIGHT.ordinal(),
+        EV_REL, EV_CODE, 2, WakeGesture.SWEEP_LEFT.ordinal(),
+        EV_REL, EV_CODE, 3, WakeGesture.SWEEP_UP.ordinal(),
+        EV_REL, EV_CODE, 4, WakeGesture.SWEEP_DOWN.ordinal(),
+        EV_REL, EV_CODE, 5, WakeGesture.DOUBLETAP.ordinal()
+    };
+
+    public ElementalXGestureSource(File root) {
+        super(root, MAPPING);
+    }
+
+    @Override
+    public String getName() {
+        return "ElementalX";
+    }
+
+    @Override
+    public boolean isSupported() {
+        try {
+            File f = file(CONFIG_PATH_WG);
+            if (!f.exists()) return false;
+            return (readFileSingleLineAsInt(f) == 1);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isGestureEnabled(WakeGesture gesture) {
+        if (!isGestureMapped(gesture)) return false;
+
+        try {
+            final boolean dt = (gesture == WakeGesture.DOUBLETAP);
+            File f = file(dt ? CONFIG_PATH_DT : CONFIG_PATH_SWEEP);
+            if (!f.exists()) return false;
+            int value = readFileSingleLineAsInt(f);
+            if (dt) return (value != 0);
+            return (value & gesture.getBitValue()) == gesture.getBitValue();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public File getInputDevice() {
+        File f = findInputDevice(INPUT_PATH, DEVICE_NAME);
+        if (f == null)
+            throw new UnsupportedOperationException("Unable to determine input device path");
+        return f;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.File;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Table driven backend for kernels reporting gestures through regular evdev input device
+ *
+ * Each profile describes input device name, optional sysfs switch enabling gestures
+ * and event mapping table. First profile whose input device is present wins.
+ */
+public class EvdevGestureSource extends GestureSource {
+    private static final String INPUT_PATH = "/sys/class/input";
+
+    private static final int KEY_UP = 103;
+    private static final int KEY_LEFT = 105;
+    private static final int KEY_RIGHT = 106;
+    private static final int KEY_DOWN = 108;
+    private static final int KEY_WAKEUP = 143;
+
+    private static class Profile {
+        final String deviceName;
+        final String enablePath;
+        final int[] mapping;
+
+        Profile(String deviceName, String enablePath, int[] mapping) {
+            this.deviceName = deviceName;
+            this.enablePath = enablePath;
+            this.mapping = mapping;
+        }
+    }
+
+    private static final Profile[] PROFILES = new Profile[] {
+        // gestures reported as key presses
+        // NOTE: speculative profile, device name and key codes were not verified on real kernel;
+        // it only documents expected layout of profiles until confirmed ones are added
+        new Profile("wake_gesture_keys", "/sys/android_touch/wake_gestures", new int[] {
+            EV_KEY, KEY_RIGHT, 1, WakeGesture.SWEEP_RIGHT.ordinal(),
+            EV_KEY, KEY_LEFT, 1, WakeGesture.SWEEP_LEFT.ordinal(),
+            EV_KEY, KEY_UP, 1, WakeGesture.SWEEP_UP.ordinal(),
+            EV_KEY, KEY_DOWN, 1, WakeGesture.SWEEP_DOWN.ordinal(),
+            EV_KEY, KEY_WAKEUP, 1, WakeGesture.DOUBLETAP.ordinal()
+        })
+    };
+
+    private final Profile mProfile;
+
+    public EvdevGestureSource(File root) {
+        this(root, findProfile(root));
+    }
+
+    private EvdevGestureSource(File root, Profile profile) {
+        super(root, profile == null ? new int[0] : profile.mapping);
+        mProfile = profile;
+    }
+
+    private static Profile findProfile(File root) {
+        for (Profile p : PROFILES) {
+            File[] inputDirs = new File(root, INPUT_PATH).listFiles();
+            if (inputDirs == null) return null;
+            for (File inputDir : inputDirs) {
+                try {
+                    if (p.deviceName.equals(readFileSingleLine(new File(inputDir, "name")))) {
+                        return p;
+                    }
+                } catch (Exception e) {
+                    // not an input device directory
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return "Evdev" + (mProfile == null ? "" : ":" + mProfile.deviceName);
+    }
+
+    @Override
+    public boolean isSupported() {
+        if (mProfile == null) return false;
+        if (mProfile.enablePath == null) return true;
+
+        try {
+            File f = file(mProfile.enablePath);
+            return (!f.exists() || readFileSingleLineAsInt(f) != 0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isGestureEnabled(WakeGesture gesture) {
+        // per gesture switches are not standardized; mapped gestures are enabled with device
+        return (isSupported() && isGestureMapped(gesture));
+    }
+
+    @Override
+    public File getInputDevice() {
+        File f = (mProfile == null ? null : findInputDevice(INPUT_PATH, mProfile.deviceName));
+        if (f == null)
+            throw new UnsupportedOperationException("Unable to determine input device path");
+        return f;
+    }
+}
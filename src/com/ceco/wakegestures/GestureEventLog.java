@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Always-on fixed capacity ring buffer of gesture events
+ *
+ * Records are stored in preallocated primitive arrays so recording never allocates.
+ * Records are formatted only when dumped.
+ */
+public class GestureEventLog {
+    public static final int DECISION_EXECUTED = 0;
+    public static final int DECISION_NO_ACTION = 1;
+    public static final int DECISION_POCKET_REJECTED = 2;
+    public static final int DECISION_DOUBLE_PENDING = 3;
+    public static final int DECISION_EXECUTED_DOUBLE = 4;
+
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_APP = 1;
+    public static final int ACTION_SHORTCUT = 2;
+    public static final int ACTION_UNLOCK = 3;
+    public static final int ACTION_TORCH = 4;
+    public static final int ACTION_MEDIA = 5;
+    public static final int ACTION_SCREEN_ON = 6;
+    public static final int ACTION_MACRO = 7;
+
+    private static final String[] DECISION_NAMES = new String[] {
+        "executed", "no_action", "pocket_rejected", "double_pending", "executed_double" };
+    private static final String[] ACTION_NAMES = new String[] {
+        "none", "app", "shortcut", "unlock", "torch", "media", "screen_on", "macro" };
+
+    private final int mCapacity;
+    private final long[] mKernelTimeUs;
+    private final long[] mWallTimeMs;
+    private final byte[] mGesture;
+    private final byte[] mDecision;
+    private final byte[] mAction;
+    private final int[] mDispatchUs;
+    private final int[] mDecisionUs;
+    private final int[] mActionUs;
+    private int mHead;
+    private int mCount;
+    private long mTotal;
+
+    public GestureEventLog(int capacity) {
+        mCapacity = capacity;
+        mKernelTimeUs = new long[capacity];
+        mWallTimeMs = new long[capacity];
+        mGesture = new byte[capacity];
+        mDecision = new byte[capacity];
+        mAction = new byte[capacity];
+        mDispatchUs = new int[capacity];
+        mDecisionUs = new int[capacity];
+        mActionUs = new int[capacity];
+    }
+
+    /**
+     * Records gesture event. Does not allocate.
+     * @param kernelTimeUs input event timestamp reported by kernel
+     * @param gesture gesture ordinal
+     * @param decision one of DECISION_* values
+     * @param action one of ACTION_* values
+     * @param dispatchUs latency from kernel timestamp to handler
+     * @param decisionUs latency from handler receiving gesture to decision being made
+     * @param actionUs time spent executing action
+     */
+    public synchronized void record(long kernelTimeUs, int gesture, int decision, int action,
+            int dispatchUs, int decisionUs, int actionUs) {
+        final int i = mHead;
+        mKernelTimeUs[i] = kernelTimeUs;
+        mWallTimeMs[i] = System.currentTimeMillis();
+        mGesture[i] = (byte) gesture;
+        mDecision[i] = (byte) decision;
+        mAction[i] = (byte) action;
+        mDispatchUs[i] = dispatchUs;
+        mDecisionUs[i] = decisionUs;
+        mActionUs[i] = actionUs;
+        mHead = (i + 1) % mCapacity;
+        if (mCount < mCapacity) mCount++;
+        mTotal++;
+    }
+
+    /**
+     * Formats all records currently in buffer, oldest first
+     * @param writer writer to dump records to
+     */
+    public void dump(Writer writer) {
+        final long[] kernelTimeUs = new long[mCapacity];
+        final long[] wallTimeMs = new long[mCapacity];
+        final byte[] gesture = new byte[mCapacity];
+        final byte[] decision = new byte[mCapacity];
+        final byte[] action = new byte[mCapacity];
+        final int[] dispatchUs = new int[mCapacity];
+        final int[] decisionUs = new int[mCapacity];
+        final int[] actionUs = new int[mCapacity];
+        final int count;
+        final int start;
+        final long total;
+
+        // copy under lock so that formatting does not block recording
+        synchronized (this) {
+            System.arraycopy(mKernelTimeUs, 0, kernelTimeUs, 0, mCapacity);
+            System.arraycopy(mWallTimeMs, 0, wallTimeMs, 0, mCapacity);
+            System.arraycopy(mGesture, 0, gesture, 0, mCapacity);
+            System.arraycopy(mDecision, 0, decision, 0, mCapacity);
+            System.arraycopy(mAction, 0, action, 0, mCapacity);
+            System.arraycopy(mDispatchUs, 0, dispatchUs, 0, mCapacity);
+            System.arraycopy(mDecisionUs, 0, decisionUs, 0, mCapacity);
+            System.arraycopy(mActionUs, 0, actionUs, 0, mCapacity);
+            count = mCount;
+            start = (mHead - mCount + mCapacity) % mCapacity;
+            total = mTotal;
+        }
+
+        final WakeGesture[] gestures = WakeGesture.values();
+        PrintWriter pw = new PrintWriter(writer);
+        pw.println("GestureEventLog: records=" + count + "; total=" + total);
+        pw.println("wallTimeMs kernelTimeUs gesture decision action dispatchUs decisionUs actionUs");
+        for (int n = 0; n < count; n++) {
+            final int i = (start + n) % mCapacity;
+            pw.print(wallTimeMs[i]);
+            pw.print(' ');
+            pw.print(kernelTimeUs[i]);
+            pw.print(' ');
+            pw.print(gesture[i] >= 0 && gesture[i] < gestures.length ? gestures[gesture[i]] : "?");
+            pw.print(' ');
+            pw.print(name(DECISION_NAMES, decision[i]));
+            pw.print(' ');
+            pw.print(name(ACTION_NAMES, action[i]));
+            pw.print(' ');
+            pw.print(dispatchUs[i]);
+            pw.print(' ');
+            pw.print(decisionUs[i]);
+            pw.print(' ');
+            pw.println(actionUs[i]);
+        }
+        pw.flush();
+    }
+
+    /**
+     * Dumps records to file
+     * @param f target file, overwritten if exists
+     * @throws IOException on write error
+     */
+    public void dump(File f) throws IOException {
+        FileWriter writer = new FileWriter(f);
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String name(String[] names, int value) {
+        return (value >= 0 && value < names.length ? names[value] : String.valueOf(value));
+    }
+}
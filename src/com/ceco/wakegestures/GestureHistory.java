@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Persistent gesture history kept by system_server
+ *
+ * Gestures are collected in memory and appended to binary log in batches from background
+ * thread. Log is periodically compacted into per-day aggregates (counts and latency histogram
+ * per gesture) which are kept for limited number of days, so both write rate and size on disk
+ * stay bounded.
+ *
+ * Settings app queries statistics via ordered broadcast ACTION_QUERY; results are returned
+ * in result extras as int arrays indexed by gesture ordinal. Both sender and receivers of
+ * the query must hold PERMISSION_QUERY, which is a signature permission of the module.
+ */
+public class GestureHistory {
+    public static final String ACTION_QUERY = "wakegestures.intent.action.QUERY_HISTORY";
+    public static final String PERMISSION_QUERY = "com.ceco.wakegestures.permission.QUERY_HISTORY";
+    public static final String EXTRA_DAYS = "days";
+    public static final String EXTRA_COUNTS = "counts";
+    public static final String EXTRA_EXECUTED = "executed";
+    public static final String EXTRA_FALSE_TRIGGERS = "falseTriggers";
+    public static final String EXTRA_LATENCY_P50 = "latencyP50";
+    public static final String EXTRA_LATENCY_P99 = "latencyP99";
+
+    private static final File DIR = new File("/data/system/wakegestures");
+    private static final String LOG_FILE = "history.log";
+    private static final String DAILY_FILE = "history_daily.bin";
+
+    // record: long wallTimeMs, byte gesture, byte decision, byte action, byte reserved, int latencyUs
+    private static final int RECORD_SIZE = 16;
+    private static final int BATCH_CAPACITY = 64;
+    private static final long FLUSH_DELAY_MS = 5 * 60 * 1000;
+    private static final int COMPACT_THRESHOLD = 2048;
+    private static final int MAX_DAYS = 90;
+    private static final int DEFAULT_QUERY_DAYS = 30;
+    private static final int DAILY_MAGIC = 0x57474844; // WGHD
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    // upper bounds of latency histogram buckets in ms; last bucket is unbounded
+    private static final int[] LATENCY_BUCKETS_MS = new int[] {
+        10, 20, 50, 100, 150, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000, Integer.MAX_VALUE };
+
+    private static final int GESTURE_COUNT = WakeGesture.values().length;
+    private static final int STAT_COUNT = 0;
+    private static final int STAT_EXECUTED = 1;
+    private static final int STAT_FALSE_TRIGGERS = 2;
+    private static final int STAT_HISTOGRAM = 3;
+    private static final int STATS_SIZE = STAT_HISTOGRAM + LATENCY_BUCKETS_MS.length;
+
+    private final Handler mHandler;
+    private final File mLogFile;
+    private final File mDailyFile;
+
+    // pending batch, guarded by this
+    private final long[] mPendingTime = new long[BATCH_CAPACITY];
+    private final byte[] mPendingGesture = new byte[BATCH_CAPACITY];
+    private final byte[] mPendingDecision = new byte[BATCH_CAPACITY];
+    private final byte[] mPendingAction = new byte[BATCH_CAPACITY];
+    private final int[] mPendingLatency = new int[BATCH_CAPACITY];
+    private int mPendingCount;
+    private boolean mFlushScheduled;
+
+    // accessed from history thread only
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BATCH_CAPACITY * RECORD_SIZE);
+    private TreeMap<Integer, int[]> mDaily;
+    private int mLogRecords;
+    private int mLogDay = -1;
+
+    public GestureHistory() {
+        HandlerThread thread = new HandlerThread("WakeGestureHistory", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mLogFile = new File(DIR, LOG_FILE);
+        mDailyFile = new File(DIR, DAILY_FILE);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                init();
+            }
+        });
+    }
+
+    /**
+     * Adds gesture record to pending batch. Does not allocate nor touch disk.
+     * @param gesture gesture ordinal
+     * @param decision one of GestureEventLog.DECISION_* values
+     * @param action one of GestureEventLog.ACTION_* values
+     * @param latencyUs total latency from kernel event till action was executed
+     */
+    public void add(int gesture, int decision, int action, int latencyUs) {
+        synchronized (this) {
+            if (mPendingCount == BATCH_CAPACITY) {
+                // history thread did not catch up; drop rather than block gesture path
+                return;
+            }
+            final int i = mPendingCount++;
+            mPendingTime[i] = System.currentTimeMillis();
+            mPendingGesture[i] = (byte) gesture;
+            mPendingDecision[i] = (byte) decision;
+            mPendingAction[i] = (byte) action;
+            mPendingLatency[i] = latencyUs;
+            if (mPendingCount == BATCH_CAPACITY) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled) {
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+                mFlushScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Writes pending records to disk without waiting for batch to fill, e.g. on shutdown
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Serves ordered broadcast query from settings app asynchronously
+     * @param receiver receiver that got ACTION_QUERY broadcast
+     * @param intent query intent
+     */
+    public void query(BroadcastReceiver receiver, Intent intent) {
+        final int days = Math.max(1, Math.min(MAX_DAYS,
+                intent.getIntExtra(EXTRA_DAYS, DEFAULT_QUERY_DAYS)));
+        final BroadcastReceiver.PendingResult result = receiver.goAsync();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.setResultExtras(queryInternal(days));
+                } catch (Throwable t) {
+                    ModWakeGestures.log("Error querying gesture history: " + t.getMessage());
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends history query from settings app. Results are delivered to resultReceiver
+     * as result extras.
+     * @param context context
+     * @param days number of days to query including today
+     * @param resultReceiver receiver getting results
+     */
+    public static void sendQuery(Context context, int days, BroadcastReceiver resultReceiver) {
+        Intent intent = new Intent(ACTION_QUERY);
+        intent.putExtra(EXTRA_DAYS, days);
+        // system_server passes permission check so no other app can answer the query
+        context.sendOrderedBroadcast(intent, PERMISSION_QUERY, resultReceiver, null, 0, null, null);
+    }
+
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    private void init() {
+        DIR.mkdirs();
+        mDaily = readDaily();
+        mLogRecords = (int) (mLogFile.length() / RECORD_SIZE);
+        // fold whatever was left from previous boot
+        if (mLogRecords > 0) {
+            compact();
+        }
+    }
+
+    private void flushPending() {
+        final int count;
+        mWriteBuffer.clear();
+        synchronized (this) {
+            count = mPendingCount;
+            for (int i = 0; i < count; i++) {
+                mWriteBuffer.putLong(mPendingTime[i]);
+                mWriteBuffer.put(mPendingGesture[i]);
+                mWriteBuffer.put(mPendingDecision[i]);
+                mWriteBuffer.put(mPendingAction[i]);
+                mWriteBuffer.put((byte) 0);
+                mWriteBuffer.putInt(mPendingLatency[i]);
+            }
+            mPendingCount = 0;
+            mFlushScheduled = false;
+        }
+        if (count == 0) return;
+
+        final long startNs = System.nanoTime();
+        try {
+            FileOutputStream fos = new FileOutputStream(mLogFile, true);
+            try {
+                fos.write(mWriteBuffer.array(), 0, mWriteBuffer.position());
+            } finally {
+                fos.close();
+            }
+            mLogRecords += count;
+        } catch (IOException e) {
+            ModWakeGestures.log("Error writing gesture history: " + e.getMessage());
+            return;
+        }
+
+        final int today = getDay(System.currentTimeMillis());
+        if (mLogRecords >= COMPACT_THRESHOLD || (mLogDay != -1 && mLogDay != today)) {
+            compact();
+        }
+        mLogDay = today;
+        if (ModWakeGestures.DEBUG) ModWakeGestures.log("Gesture history: " + count +
+                " records written in " + (System.nanoTime() - startNs) / 1000 + "us");
+    }
+
+    /**
+     * Folds all log records into daily aggregates, drops days exceeding retention
+     * and truncates log
+     */
+    private void compact() {
+        readLog(mDaily);
+        final int oldestDay = getDay(System.currentTimeMillis()) - MAX_DAYS + 1;
+        while (!mDaily.isEmpty() && mDaily.firstKey() < oldestDay) {
+            mDaily.remove(mDaily.firstKey());
+        }
+        try {
+            writeDaily(mDaily);
+            mLogFile.delete();
+            mLogRecords = 0;
+        } catch (IOException e) {
+            ModWakeGestures.log("Error compacting gesture history: " + e.getMessage());
+            // log is kept so reload aggregates from disk to avoid counting records twice
+            mDaily = readDaily();
+        }
+    }
+
+    private Bundle queryInternal(int days) {
+        flushPending();
+
+        TreeMap<Integer, int[]> daily = new TreeMap<Integer, int[]>();
+        for (Map.Entry<Integer, int[]> e : mDaily.entrySet()) {
+            daily.put(e.getKey(), e.getValue().clone());
+        }
+        readLog(daily);
+
+        final int firstDay = getDay(System.currentTimeMillis()) - days + 1;
+        int[] total = new int[GESTURE_COUNT * STATS_SIZE];
+        for (Map.Entry<Integer, int[]> e : daily.tailMap(firstDay).entrySet()) {
+            final int[] stats = e.getValue();
+            for (int i = 0; i < total.length; i++) {
+                total[i] += stats[i];
+            }
+        }
+
+        int[] counts = new int[GESTURE_COUNT];
+        int[] executed = new int[GESTURE_COUNT];
+        int[] falseTriggers = new int[GESTURE_COUNT];
+        int[] p50 = new int[GESTURE_COUNT];
+        int[] p99 = new int[GESTURE_COUNT];
+        for (int g = 0; g < GESTURE_COUNT; g++) {
+            final int base = g * STATS_SIZE;
+            counts[g] = total[base + STAT_COUNT];
+            executed[g] = total[base + STAT_EXECUTED];
+            falseTriggers[g] = total[base + STAT_FALSE_TRIGGERS];
+            p50[g] = getPercentile(total, base, 50);
+            p99[g] = getPercentile(total, base, 99);
+        }
+
+        Bundle b = new Bundle();
+        b.putInt(EXTRA_DAYS, days);
+        b.putIntArray(EXTRA_COUNTS, counts);
+        b.putIntArray(EXTRA_EXECUTED, executed);
+        b.putIntArray(EXTRA_FALSE_TRIGGERS, falseTriggers);
+        b.putIntArray(EXTRA_LATENCY_P50, p50);
+        b.putIntArray(EXTRA_LATENCY_P99, p99);
+        return b;
+    }
+
+    /**
+     * @return upper bound in ms of histogram bucket containing given percentile
+     *         or -1 if there are no samples
+     */
+    private static int getPercentile(int[] stats, int base, int percentile) {
+        final int histogram = base + STAT_HISTOGRAM;
+        int samples = 0;
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            samples += stats[histogram + i];
+        }
+        if (samples == 0) return -1;
+
+        final long threshold = ((long) samples * percentile + 99) / 100;
+        int seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            seen += stats[histogram + i];
+            if (seen >= threshold) {
+                return LATENCY_BUCKETS_MS[i];
+            }
+        }
+        return LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1];
+    }
+
+    private void readLog(TreeMap<Integer, int[]> daily) {
+        if (!mLogFile.exists()) return;
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile)));
+            // trailing partial record from interrupted write is ignored
+            final long records = mLogFile.length() / RECORD_SIZE;
+            for (long r = 0; r < records; r++) {
+                final long time = dis.readLong();
+                final int gesture = dis.readByte();
+                final int decision = dis.readByte();
+                dis.readByte(); // action
+                dis.readByte();
+                final int latencyUs = dis.readInt();
+                // first half of double gesture is followed by its own record
+                if (gesture < 0 || gesture >= GESTURE_COUNT ||
+                        decision == GestureEventLog.DECISION_DOUBLE_PENDING) continue;
+
+                final int day = getDay(time);
+                int[] stats = daily.get(day);
+                if (stats == null) {
+                    stats = new int[GESTURE_COUNT * STATS_SIZE];
+                    daily.put(day, stats);
+                }
+                final int base = gesture * STATS_SIZE;
+                stats[base + STAT_COUNT]++;
+                if (decision == GestureEventLog.DECISION_POCKET_REJECTED) {
+                    stats[base + STAT_FALSE_TRIGGERS]++;
+                } else if (decision == GestureEventLog.DECISION_EXECUTED ||
+                        decision == GestureEventLog.DECISION_EXECUTED_DOUBLE) {
+                    stats[base + STAT_EXECUTED]++;
+                    stats[base + STAT_HISTOGRAM + getLatencyBucket(latencyUs)]++;
+                }
+            }
+        } catch (IOException e) {
+            ModWakeGestures.log("Error reading gesture history: " + e.getMessage());
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    private static int getLatencyBucket(int latencyUs) {
+        final int latencyMs = latencyUs / 1000;
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            if (latencyMs <= LATENCY_BUCKETS_MS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BUCKETS_MS.length - 1;
+    }
+
+    private TreeMap<Integer, int[]> readDaily() {
+        TreeMap<Integer, int[]> daily = new TreeMap<Integer, int[]>();
+        if (!mDailyFile.exists()) return daily;
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mDailyFile)));
+            if (dis.readInt() != DAILY_MAGIC || dis.readInt() != STATS_SIZE ||
+                    dis.readInt() != GESTURE_COUNT) {
+                ModWakeGestures.log("Gesture history aggregates have incompatible format; discarding");
+                return daily;
+            }
+            final int dayCount = Math.min(dis.readInt(), MAX_DAYS);
+            for (int d = 0; d < dayCount; d++) {
+                final int day = dis.readInt();
+                int[] stats = new int[GESTURE_COUNT * STATS_SIZE];
+                for (int i = 0; i < stats.length; i++) {
+                    stats[i] = dis.readInt();
+                }
+                daily.put(day, stats);
+            }
+        } catch (IOException e) {
+            ModWakeGestures.log("Error reading gesture history aggregates: " + e.getMessage());
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) { }
+            }
+        }
+        return daily;
+    }
+
+    private void writeDaily(TreeMap<Integer, int[]> daily) throws IOException {
+        File tmp = new File(DIR, DAILY_FILE + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(DAILY_MAGIC);
+            dos.writeInt(STATS_SIZE);
+            dos.writeInt(GESTURE_COUNT);
+            dos.writeInt(daily.size());
+            for (Map.Entry<Integer, int[]> e : daily.entrySet()) {
+                dos.writeInt(e.getKey());
+                for (int value : e.getValue()) {
+                    dos.writeInt(value);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(mDailyFile)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp + " to " + mDailyFile);
+        }
+    }
+
+    private static int getDay(long timeMs) {
+        return (int) ((timeMs + TimeZone.getDefault().getOffset(timeMs)) / DAY_MS);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Process;
+
+/**
+ * Pushes gesture records to subscribed clients over abstract Unix domain socket
+ *
+ * Every client gets its own bounded queue of fixed size records and writer thread,
+ * so a slow client never delays gesture handling nor other clients. Client whose
+ * queue overflows is considered too slow and gets disconnected. As the socket namespace
+ * is open to all apps, clients other than system have to hold PERMISSION_SUBSCRIBE.
+ *
+ * Record (big endian, RECORD_SIZE bytes):
+ *   int magic, int sequence, byte gesture, byte decision, byte action, byte reserved,
+ *   long kernelTimeUs, long publishTimeNs (System.nanoTime() at publish)
+ *
+ * See GestureSubscriber for client side.
+ */
+public class GesturePublisher {
+    public static final String SOCKET_NAME = "wakegestures";
+    public static final int RECORD_MAGIC = 0x57474556; // WGEV
+    public static final int RECORD_SIZE = 32;
+    public static final String PERMISSION_SUBSCRIBE = "com.ceco.wakegestures.permission.SUBSCRIBE_GESTURES";
+
+    private static final int MAX_CLIENTS = 8;
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final Context mContext;
+    private final List<Client> mClients = new ArrayList<Client>(MAX_CLIENTS);
+    private LocalServerSocket mServerSocket;
+    private int mSequence;
+    private int mEvictions;
+    private int mRejections;
+
+    public GesturePublisher(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts accepting clients in background thread
+     */
+    public void start() {
+        try {
+            mServerSocket = new LocalServerSocket(SOCKET_NAME);
+        } catch (IOException e) {
+            ModWakeGestures.log("Error creating gesture publisher socket: " + e.getMessage());
+            return;
+        }
+        new Thread(mAcceptRunnable, "WakeGesturePublisher").start();
+    }
+
+    private Runnable mAcceptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final LocalSocket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    ModWakeGestures.log("Gesture publisher stopped: " + e.getMessage());
+                    return;
+                }
+                final boolean allowed = isPeerAllowed(socket);
+                synchronized (mClients) {
+                    if (!allowed) {
+                        mRejections++;
+                        closeSocket(socket);
+                        continue;
+                    }
+                    if (mClients.size() >= MAX_CLIENTS) {
+                        if (ModWakeGestures.DEBUG) ModWakeGestures.log("Gesture publisher: too many clients");
+                        closeSocket(socket);
+                        continue;
+                    }
+                    Client client = new Client(socket);
+                    mClients.add(client);
+                    client.start();
+                }
+            }
+        }
+    };
+
+    private boolean isPeerAllowed(LocalSocket socket) {
+        final Credentials cred;
+        try {
+            cred = socket.getPeerCredentials();
+        } catch (IOException e) {
+            return false;
+        }
+        if (cred.getUid() == Process.SYSTEM_UID) return true;
+
+        // module app holds the permission itself; third party apps need user's consent
+        if (mContext.checkPermission(PERMISSION_SUBSCRIBE, cred.getPid(), cred.getUid()) ==
+                PackageManager.PERMISSION_GRANTED) return true;
+
+        if (ModWakeGestures.DEBUG) ModWakeGestures.log("Gesture publisher: rejected uid " + cred.getUid());
+        return false;
+    }
+
+    /**
+     * Publishes gesture to all subscribed clients. Does not block nor allocate.
+     */
+    public void publish(long kernelTimeUs, int gesture, int decision, int action) {
+        int evicted = 0;
+        int evictions;
+        synchronized (mClients) {
+            if (mClients.isEmpty()) return;
+            final long publishTimeNs = System.nanoTime();
+            final int sequence = ++mSequence;
+            for (int i = mClients.size() - 1; i >= 0; i--) {
+                Client client = mClients.get(i);
+                if (!client.mQueue.offer(sequence, kernelTimeUs, publishTimeNs, gesture, decision, action)) {
+                    evicted++;
+                    mClients.remove(i);
+                    client.close();
+                }
+            }
+            mEvictions += evicted;
+            evictions = mEvictions;
+        }
+        // logging goes through XposedBridge file I/O so it is kept out of the lock
+        if (evicted > 0) {
+            ModWakeGestures.log("Gesture publisher: evicted " + evicted + " slow client(s); evictions=" +
+                    evictions);
+        }
+    }
+
+    public int getClientCount() {
+        synchronized (mClients) {
+            return mClients.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mClients) {
+            return "GesturePublisher: clients=" + mClients.size() + "; published=" + mSequence +
+                    "; evictions=" + mEvictions + "; rejections=" + mRejections;
+        }
+    }
+
+    private void removeClient(Client client) {
+        synchronized (mClients) {
+            mClients.remove(client);
+        }
+    }
+
+    private static void closeSocket(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) { }
+    }
+
+    /**
+     * Bounded queue of encoded records consumed by single writer thread
+     */
+    static class RecordQueue {
+        private final int mCapacity;
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        RecordQueue(int capacity) {
+            mCapacity = capacity;
+            mBuffer = new byte[capacity * RECORD_SIZE];
+        }
+
+        /**
+         * @return false if queue is full
+         */
+        synchronized boolean offer(int sequence, long kernelTimeUs, long publishTimeNs,
+                int gesture, int decision, int action) {
+            if (mCount == mCapacity) return false;
+            int pos = ((mHead + mCount) % mCapacity) * RECORD_SIZE;
+            pos = putInt(mBuffer, pos, RECORD_MAGIC);
+            pos = putInt(mBuffer, pos, sequence);
+            mBuffer[pos++] = (byte) gesture;
+            mBuffer[pos++] = (byte) decision;
+            mBuffer[pos++] = (byte) action;
+            mBuffer[pos++] = 0;
+            pos = putLong(mBuffer, pos, kernelTimeUs);
+            putLong(mBuffer, pos, publishTimeNs);
+            mCount++;
+            notify();
+            return true;
+        }
+
+        /**
+         * Blocks until record is available or queue gets closed
+         * @param record buffer of RECORD_SIZE bytes to copy record into
+         * @return false if queue was closed
+         */
+        synchronized boolean take(byte[] record) throws InterruptedException {
+            while (mCount == 0 && !mClosed) {
+                wait();
+            }
+            if (mClosed) return false;
+            System.arraycopy(mBuffer, mHead * RECORD_SIZE, record, 0, RECORD_SIZE);
+            mHead = (mHead + 1) % mCapacity;
+            mCount--;
+            return true;
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notify();
+        }
+
+        synchronized int size() {
+            return mCount;
+        }
+    }
+
+    private class Client extends Thread {
+        private final LocalSocket mSocket;
+        private final RecordQueue mQueue = new RecordQueue(QUEUE_CAPACITY);
+        private final byte[] mRecord = new byte[RECORD_SIZE];
+
+        Client(LocalSocket socket) {
+            super("WakeGesturePublisherClient");
+            mSocket = socket;
+        }
+
+        void close() {
+            mQueue.close();
+            // wakes writer blocked on client that stopped reading; socket is closed by writer
+            try {
+                mSocket.shutdownOutput();
+            } catch (IOException e) { }
+        }
+
+        @Override
+        public void run() {
+            try {
+                OutputStream os = mSocket.getOutputStream();
+                while (mQueue.take(mRecord)) {
+                    os.write(mRecord);
+                    os.flush();
+                }
+            } catch (IOException e) {
+                if (ModWakeGestures.DEBUG) ModWakeGestures.log("Gesture publisher client gone: " + e.getMessage());
+            } catch (InterruptedException e) {
+                // finish
+            } finally {
+                removeClient(this);
+                closeSocket(mSocket);
+            }
+        }
+    }
+
+    private static int putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] b, int pos, long value) {
+        pos = putInt(b, pos, (int) (value >>> 32));
+        return putInt(b, pos, (int) value);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+
+/**
+ * Conditional actions of a single gesture compiled into a decision table
+ *
+ * Rule spec consists of rules separated by '|'. Each rule has form "conditions action"
+ * where conditions is comma separated list of:
+ *   music, !music, charging, !charging, locked, !locked, time:FROM-TO (minutes of day)
+ * or "*" matching always. Action is either intent URI, "default" (gesture's own action)
+ * or "none" (do nothing). Rules are evaluated in order and first matching rule wins.
+ *
+ * Example: "music intent:#Intent;...;end|* intent:#Intent;...;end"
+ * Example: "time:1320-420 default|* none"
+ */
+public class GestureRules {
+    public static final int SIGNAL_MUSIC_ACTIVE = 1;
+    public static final int SIGNAL_CHARGING = 1 << 1;
+    public static final int SIGNAL_KEYGUARD = 1 << 2;
+
+    public static final int RESULT_NO_MATCH = -1;
+    public static final int RESULT_DEFAULT = -2;
+    public static final int RESULT_NONE = -3;
+
+    private static final int NO_TIME = -1;
+
+    private final int[] mMask;
+    private final int[] mValue;
+    private final int[] mTimeFrom;
+    private final int[] mTimeTo;
+    private final int[] mResult;
+    private final Intent[] mActions;
+    private final int mRequiredSignals;
+    private final boolean mRequiresTime;
+
+    private GestureRules(List<int[]> rows, List<Intent> actions) {
+        final int count = rows.size();
+        mMask = new int[count];
+        mValue = new int[count];
+        mTimeFrom = new int[count];
+        mTimeTo = new int[count];
+        mResult = new int[count];
+        mActions = actions.toArray(new Intent[actions.size()]);
+
+        int requiredSignals = 0;
+        boolean requiresTime = false;
+        for (int i = 0; i < count; i++) {
+            int[] row = rows.get(i);
+            mMask[i] = row[0];
+            mValue[i] = row[1];
+            mTimeFrom[i] = row[2];
+            mTimeTo[i] = row[3];
+            mResult[i] = row[4];
+            requiredSignals |= row[0];
+            requiresTime |= (row[2] != NO_TIME);
+        }
+        mRequiredSignals = requiredSignals;
+        mRequiresTime = requiresTime;
+    }
+
+    /**
+     * Compiles rule spec into decision table. Invalid rules are logged and skipped.
+     * @param spec rule specification
+     * @return compiled rules or null if spec is empty or contains no valid rule
+     */
+    public static GestureRules compile(String spec) {
+        return compile(spec, null);
+    }
+
+    /**
+     * Compiles rule spec into decision table. Invalid rules are skipped.
+     * @param spec rule specification
+     * @param errors receives description of each invalid rule instead of logging it;
+     * settings app uses it to validate spec as there is no Xposed log in app process
+     * @return compiled rules or null if spec is empty or contains no valid rule
+     */
+    public static GestureRules compile(String spec, List<String> errors) {
+        if (spec == null || spec.trim().length() == 0) return null;
+
+        List<int[]> rows = new ArrayList<int[]>();
+        List<Intent> actions = new ArrayList<Intent>();
+        for (String rule : spec.split("\\|")) {
+            rule = rule.trim();
+            int sep = rule.indexOf(' ');
+            if (sep <= 0) {
+                reportError(errors, "Invalid rule: " + rule);
+                continue;
+            }
+            try {
+                int[] row = new int[] { 0, 0, NO_TIME, NO_TIME, 0 };
+                parseConditions(rule.substring(0, sep), row);
+                String action = rule.substring(sep + 1).trim();
+                if (action.equals("default")) {
+                    row[4] = RESULT_DEFAULT;
+                } else if (action.equals("none")) {
+                    row[4] = RESULT_NONE;
+                } else {
+                    actions.add(Intent.parseUri(action, 0));
+                    row[4] = actions.size() - 1;
+                }
+                rows.add(row);
+            } catch (URISyntaxException e) {
+                reportError(errors, "Error parsing rule uri: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                reportError(errors, "Invalid rule: " + e.getMessage());
+            }
+        }
+
+        return (rows.isEmpty() ? null : new GestureRules(rows, actions));
+    }
+
+    private static void reportError(List<String> errors, String message) {
+        if (errors != null) {
+            errors.add(message);
+        } else {
+            ModWakeGestures.log(message);
+        }
+    }
+
+    private static void parseConditions(String conditions, int[] row) {
+        if (conditions.equals("*")) return;
+
+        for (String cond : conditions.split(",")) {
+            boolean negate = cond.startsWith("!");
+            String name = negate ? cond.substring(1) : cond;
+            int signal;
+            if (name.equals("music")) {
+                signal = SIGNAL_MUSIC_ACTIVE;
+            } else if (name.equals("charging")) {
+                signal = SIGNAL_CHARGING;
+            } else if (name.equals("locked")) {
+                signal = SIGNAL_KEYGUARD;
+            } else if (name.startsWith("time:") && !negate) {
+                String[] range = name.substring(5).split("-");
+                if (range.length != 2)
+                    throw new IllegalArgumentException("Invalid time range: " + name);
+                row[2] = parseMinuteOfDay(range[0]);
+                row[3] = parseMinuteOfDay(range[1]);
+                continue;
+            } else {
+                throw new IllegalArgumentException("Unknown condition: " + cond);
+            }
+            row[0] |= signal;
+            if (!negate) {
+                row[1] |= signal;
+            }
+        }
+    }
+
+    private static int parseMinuteOfDay(String value) {
+        int minute = Integer.parseInt(value.trim());
+        if (minute < 0 || minute >= 1440)
+            throw new IllegalArgumentException("Minute of day out of range: " + value);
+        return minute;
+    }
+
+    /**
+     * @return bit mask of SIGNAL_* values rules depend on
+     */
+    public int getRequiredSignals() {
+        return mRequiredSignals;
+    }
+
+    public boolean requiresTime() {
+        return mRequiresTime;
+    }
+
+    /**
+     * Evaluates rules against current context
+     * @param signals bit mask of SIGNAL_* values that are currently true
+     * @param minuteOfDay current local time as minute of day (ignored if time not required)
+     * @return index of action to be retrieved via getAction() or one of RESULT_* values
+     */
+    public int evaluate(int signals, int minuteOfDay) {
+        final int count = mMask.length;
+        for (int i = 0; i < count; i++) {
+            if ((signals & mMask[i]) != mValue[i]) continue;
+            final int from = mTimeFrom[i];
+            if (from != NO_TIME) {
+                final int to = mTimeTo[i];
+                final boolean inRange = from <= to ?
+                        (minuteOfDay >= from && minuteOfDay < to) :
+                        (minuteOfDay >= from || minuteOfDay < to);
+                if (!inRange) continue;
+            }
+            return mResult[i];
+        }
+        return RESULT_NO_MATCH;
+    }
+
+    public Intent getAction(int index) {
+        return mActions[index];
+    }
+
+    public int getActionCount() {
+        return mActions.length;
+    }
+
+    public int size() {
+        return mMask.length;
+    }
+}
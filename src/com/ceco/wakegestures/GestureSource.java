@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Kernel backend providing wake gestures
+ *
+ * Backend detects whether kernel supports it, probes which gestures are enabled,
+ * locates input device and maps raw input events to gestures using event mapping table.
+ * Reading and decoding of input events is shared by all backends (see WakeGestureProcessor).
+ *
+ * All paths are resolved against root directory so that backends can be pointed
+ * to fake sysfs/dev trees.
+ */
+public abstract class GestureSource {
+    private static final String TAG = "WG:GestureSource";
+
+    public static final int EV_KEY = 1;
+    public static final int EV_REL = 2;
+
+    /**
+     * Event mapping table entry size: type, code, value, gesture ordinal
+     */
+    protected static final int MAPPING_SIZE = 4;
+
+    protected final File mRoot;
+    private final int[] mMapping;
+
+    /**
+     * @param root root directory all paths are resolved against
+     * @param mapping event mapping table as sequence of {type, code, value, gesture ordinal}
+     */
+    protected GestureSource(File root, int[] mapping) {
+        mRoot = root;
+        mMapping = mapping;
+    }
+
+    /**
+     * Detects first backend supported by kernel
+     * @param root root directory, "/" for real device
+     * @return supported backend or null if there is none
+     */
+    public static GestureSource detect(File root) {
+        GestureSource[] sources = detectAll(root);
+        return (sources.length > 0 ? sources[0] : null);
+    }
+
+    /**
+     * Detects all backends supported by kernel
+     * @param root root directory, "/" for real device
+     * @return supported backends in order of preference
+     */
+    public static GestureSource[] detectAll(File root) {
+        GestureSource[] sources = new GestureSource[] {
+            new ElementalXGestureSource(root),
+            new EvdevGestureSource(root),
+            new ShapeGestureSource(root)
+        };
+        List<GestureSource> supported = new ArrayList<GestureSource>(sources.length);
+        for (GestureSource source : sources) {
+            try {
+                if (source.isSupported()) {
+                    supported.add(source);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error probing " + source.getName() + ": " + e.getMessage());
+            }
+        }
+        return supported.toArray(new GestureSource[supported.size()]);
+    }
+
+    public abstract String getName();
+
+    /**
+     * @return true if kernel provides gestures via this backend
+     */
+    public abstract boolean isSupported();
+
+    /**
+     * Probes whether gesture is currently enabled in kernel
+     */
+    public abstract boolean isGestureEnabled(WakeGesture gesture);
+
+    /**
+     * @return input device file gestures are read from
+     * @throws UnsupportedOperationException when device cannot be found
+     */
+    public abstract File getInputDevice();
+
+    /**
+     * Notifies backend about screen state; backends may ignore events while screen is on
+     */
+    public void onScreenStateChanged(boolean screenOn) { }
+
+    /**
+     * @return false while backend ignores all events; its input device is then not polled
+     * until state changes via onScreenStateChanged
+     */
+    public boolean isActive() {
+        return true;
+    }
+
+    /**
+     * Maps input event to gesture. Called for every input event so must not allocate.
+     * @return gesture ordinal or -1 if event does not represent gesture
+     */
+    public int mapEvent(int type, int code, int value) {
+        final int[] mapping = mMapping;
+        for (int i = 0; i < mapping.length; i += MAPPING_SIZE) {
+            if (mapping[i] == type && mapping[i + 1] == code && mapping[i + 2] == value) {
+                return mapping[i + 3];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if mapping table contains gesture
+     */
+    public boolean isGestureMapped(WakeGesture gesture) {
+        for (int i = 3; i < mMapping.length; i += MAPPING_SIZE) {
+            if (mMapping[i] == gesture.ordinal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected File file(String path) {
+        return new File(mRoot, path);
+    }
+
+    /**
+     * Finds event device of input device with given name
+     * @param inputClassPath sysfs directory containing input device directories
+     * @param deviceName value of input device name attribute
+     * @return device file under root/dev/input or null if not found
+     */
+    protected File findInputDevice(String inputClassPath, String deviceName) {
+        File[] inputDirs = file(inputClassPath).listFiles();
+        if (inputDirs == null) return null;
+
+        for (File inputDir : inputDirs) {
+            if (!inputDir.isDirectory()) continue;
+            File[] inputFiles = inputDir.listFiles();
+            if (inputFiles == null) continue;
+            boolean nameMatches = false;
+            String eventName = null;
+            for (File inputFile : inputFiles) {
+                if (inputFile.getName().startsWith("event")) {
+                    eventName = inputFile.getName();
+                }
+                if (inputFile.getName().equals("name")) {
+                    try {
+                        nameMatches = deviceName.equals(readFileSingleLine(inputFile));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error reading device name: " + e.getMessage());
+                    }
+                }
+            }
+            if (nameMatches && eventName != null) {
+                return file("/dev/input/" + eventName);
+            }
+        }
+        return null;
+    }
+
+    protected static int readFileSingleLineAsInt(File f) throws IOException, NumberFormatException {
+        return Integer.valueOf(readFileSingleLine(f).trim());
+    }
+
+    protected static String readFileSingleLine(File f) throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(f));
+            return reader.readLine();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e1) { }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "@" + mRoot;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Client side of GesturePublisher subscription
+ *
+ * Receives gesture records in its own thread and keeps latency statistics measured from
+ * the moment record was published in system_server. Several subscribers can be created
+ * to measure fan-out latency. Apps other than the module need GesturePublisher.PERMISSION_SUBSCRIBE.
+ */
+public class GestureSubscriber {
+    private static final String TAG = "WG:GestureSubscriber";
+
+    /**
+     * Interface for receiving gestures
+     */
+    public interface GestureListener {
+        /**
+         * Fires in subscriber thread when gesture record is received
+         * @param gesture WakeGesture that was triggered
+         * @param decision one of GestureEventLog.DECISION_* values
+         * @param action one of GestureEventLog.ACTION_* values
+         * @param kernelTimeUs kernel timestamp of input event
+         * @param latencyNs time from publishing till receiving record
+         */
+        void onGesture(WakeGesture gesture, int decision, int action, long kernelTimeUs, long latencyNs);
+    }
+
+    private final GestureListener mListener;
+    private LocalSocket mSocket;
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    private int mReceived;
+    private int mLost;
+    private long mTotalLatencyNs;
+    private long mMaxLatencyNs;
+
+    public GestureSubscriber(GestureListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Connects to publisher and starts receiving
+     * @throws IOException when publisher is not available
+     */
+    public synchronized void subscribe() throws IOException {
+        if (mSocket != null) return;
+
+        mStopped = false;
+        mSocket = new LocalSocket();
+        mSocket.connect(new LocalSocketAddress(GesturePublisher.SOCKET_NAME,
+                LocalSocketAddress.Namespace.ABSTRACT));
+        mThread = new Thread(mReadRunnable, "GestureSubscriber");
+        mThread.start();
+    }
+
+    public synchronized void unsubscribe() {
+        mStopped = true;
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) { }
+            mSocket = null;
+        }
+        mThread = null;
+    }
+
+    private Runnable mReadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final byte[] record = new byte[GesturePublisher.RECORD_SIZE];
+            final ByteBuffer buf = ByteBuffer.wrap(record);
+            final WakeGesture[] gestures = WakeGesture.values();
+            int lastSequence = 0;
+            final LocalSocket socket;
+            synchronized (GestureSubscriber.this) {
+                socket = mSocket;
+            }
+            if (socket == null) return;
+            try {
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+                while (!mStopped) {
+                    dis.readFully(record);
+                    final long latencyNs = System.nanoTime() - buf.getLong(24);
+                    if (buf.getInt(0) != GesturePublisher.RECORD_MAGIC) {
+                        throw new IOException("Invalid record");
+                    }
+                    final int sequence = buf.getInt(4);
+                    final int gesture = record[8];
+                    synchronized (GestureSubscriber.this) {
+                        if (lastSequence != 0 && sequence > lastSequence + 1) {
+                            mLost += sequence - lastSequence - 1;
+                        }
+                        mReceived++;
+                        mTotalLatencyNs += latencyNs;
+                        if (latencyNs > mMaxLatencyNs) {
+                            mMaxLatencyNs = latencyNs;
+                        }
+                    }
+                    lastSequence = sequence;
+                    if (mListener != null && gesture >= 0 && gesture < gestures.length) {
+                        mListener.onGesture(gestures[gesture], record[9], record[10],
+                                buf.getLong(12), latencyNs);
+                    }
+                }
+            } catch (IOException e) {
+                if (!mStopped) Log.e(TAG, "Subscription terminated: " + e.getMessage());
+            }
+        }
+    };
+
+    public synchronized int getReceivedCount() {
+        return mReceived;
+    }
+
+    public synchronized long getAverageLatencyNs() {
+        return (mReceived == 0 ? 0 : mTotalLatencyNs / mReceived);
+    }
+
+    public synchronized long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GestureSubscriber: received=" + mReceived + "; lost=" + mLost +
+                "; avgLatency=" + getAverageLatencyNs() / 1000 + "us" +
+                "; maxLatency=" + mMaxLatencyNs / 1000 + "us";
+    }
+}
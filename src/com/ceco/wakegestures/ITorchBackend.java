@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+/**
+ * Hardware access used by torch
+ */
+public interface ITorchBackend {
+    public String getName();
+
+    /**
+     * Switches torch on or off
+     * @throws Exception when torch could not be switched
+     */
+    public void setTorch(boolean on) throws Exception;
+
+    /**
+     * @return true if backend holds resources that should be released once torch is off
+     */
+    public boolean isHoldingResources();
+
+    /**
+     * Releases all resources held by backend. Backend can be used again afterwards.
+     */
+    public void release();
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Waits for input on several file descriptors at once using poll(2)
+ *
+ * Public API offers no way to poll plain file descriptors, so libcore Os.poll()
+ * is accessed via reflection. StructPollfd lives in libcore.io before Lollipop and
+ * in android.system since. create() returns null when neither is available and
+ * caller is expected to fall back to blocking reads.
+ *
+ * Descriptors can be temporarily removed from poll set so that devices nobody is interested
+ * in do not wake polling thread. Poll set may be changed by polling thread only; other threads
+ * use wakeup() to get it to reevaluate. Internal pipe used for that is polled as last descriptor.
+ */
+public class InputPoller {
+    private final Object mOs;
+    private final Method mPollMethod;
+    private final Field mFdField;
+    private final Field mReventsField;
+    private final Object mPollFds;
+    private final Object[] mPollArgs;
+    private final Object[] mPollNowArgs;
+    private final short mPollIn;
+    private final int mCount;
+    private final FileDescriptor[] mFds;
+    // invalid descriptor; poll ignores entries with negative fd
+    private final FileDescriptor mDisabledFd = new FileDescriptor();
+    private final FileInputStream mWakeupIn;
+    private final FileOutputStream mWakeupOut;
+    private final byte[] mWakeupBuf = new byte[16];
+
+    private InputPoller(FileDescriptor[] fds, int timeoutMs) throws Exception {
+        mOs = Class.forName("libcore.io.Libcore").getField("os").get(null);
+
+        Class<?> pollFdClass;
+        Class<?> constantsClass;
+        try {
+            pollFdClass = Class.forName("android.system.StructPollfd");
+            constantsClass = Class.forName("android.system.OsConstants");
+        } catch (ClassNotFoundException e) {
+            pollFdClass = Class.forName("libcore.io.StructPollfd");
+            constantsClass = Class.forName("libcore.io.OsConstants");
+        }
+        mPollIn = (short) constantsClass.getField("POLLIN").getInt(null);
+
+        final FileDescriptor[] pipe = createPipe();
+        mWakeupIn = new FileInputStream(pipe[0]);
+        mWakeupOut = new FileOutputStream(pipe[1]);
+
+        mFdField = pollFdClass.getField("fd");
+        final Field eventsField = pollFdClass.getField("events");
+        mReventsField = pollFdClass.getField("revents");
+        mCount = fds.length;
+        mFds = new FileDescriptor[mCount + 1];
+        System.arraycopy(fds, 0, mFds, 0, mCount);
+        mFds[mCount] = pipe[0];
+        mPollFds = Array.newInstance(pollFdClass, mCount + 1);
+        for (int i = 0; i <= mCount; i++) {
+            Object pollFd = pollFdClass.newInstance();
+            mFdField.set(pollFd, mFds[i]);
+            eventsField.setShort(pollFd, mPollIn);
+            Array.set(mPollFds, i, pollFd);
+        }
+
+        mPollMethod = mOs.getClass().getMethod("poll", mPollFds.getClass(), int.class);
+        mPollMethod.setAccessible(true);
+        // arguments are preallocated so that waiting does not produce garbage
+        mPollArgs = new Object[] { mPollFds, Integer.valueOf(timeoutMs) };
+        mPollNowArgs = new Object[] { mPollFds, Integer.valueOf(0) };
+    }
+
+    private FileDescriptor[] createPipe() throws Exception {
+        try {
+            return (FileDescriptor[]) mOs.getClass().getMethod("pipe2", int.class).invoke(mOs, 0);
+        } catch (NoSuchMethodException e) {
+            return (FileDescriptor[]) mOs.getClass().getMethod("pipe").invoke(mOs);
+        }
+    }
+
+    /**
+     * @param fds file descriptors to wait on
+     * @param timeoutMs poll timeout, -1 to wait indefinitely
+     * @return poller or null if poll is not available on this platform
+     */
+    public static InputPoller create(FileDescriptor[] fds, int timeoutMs) {
+        try {
+            return new InputPoller(fds, timeoutMs);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Blocks until at least one descriptor is readable or timeout expires
+     * @return number of readable descriptors
+     * @throws Exception on poll error
+     */
+    public int poll() throws Exception {
+        return poll(mPollArgs);
+    }
+
+    /**
+     * Checks which descriptors are readable without blocking
+     * @return number of readable descriptors
+     * @throws Exception on poll error
+     */
+    public int pollNow() throws Exception {
+        return poll(mPollNowArgs);
+    }
+
+    private int poll(Object[] args) throws Exception {
+        for (int i = 0; i <= mCount; i++) {
+            mReventsField.setShort(Array.get(mPollFds, i), (short) 0);
+        }
+        int ready = (Integer) mPollMethod.invoke(mOs, args);
+        if (isReadable(mCount)) {
+            // wakeup pipe
+            mWakeupIn.read(mWakeupBuf);
+            ready--;
+        }
+        return ready;
+    }
+
+    /**
+     * Adds descriptor with given index to or removes it from poll set. Removed descriptor
+     * is never reported as readable. Must be called from polling thread.
+     */
+    public void setEnabled(int index, boolean enabled) throws IllegalAccessException {
+        mFdField.set(Array.get(mPollFds, index), enabled ? mFds[index] : mDisabledFd);
+    }
+
+    /**
+     * Makes pending or next poll return so that polling thread can update poll set.
+     * May be called from any thread.
+     */
+    public void wakeup() {
+        try {
+            mWakeupOut.write(1);
+        } catch (IOException e) {
+            // pipe is never closed
+        }
+    }
+
+    /**
+     * @return true if descriptor with given index became readable in last poll
+     */
+    public boolean isReadable(int index) throws IllegalAccessException {
+        return (mReventsField.getShort(Array.get(mPollFds, index)) & mPollIn) != 0;
+    }
+
+    /**
+     * @return true if descriptor with given index reported error or hangup in last poll
+     */
+    public boolean hasError(int index) throws IllegalAccessException {
+        final short revents = mReventsField.getShort(Array.get(mPollFds, index));
+        return (revents != 0 && (revents & mPollIn) == 0);
+    }
+}
@@ -38,24 +38,40 @@ public class ModWakeGestures implements IXposedHookZygoteInit, IXposedHookLoadPa
 
     @Override
     public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
-        if (lpparam.packageName.equals(PACKAGE_NAME)) {
-            try {
-                if (DEBUG) log("Hooking isModuleActive method");
-                XposedHelpers.findAndHookMethod(WakeGestureSettings.PlaceholderFragment.class.getName(), 
-                        lpparam.classLoader, "isModuleActive", XC_MethodReplacement.returnConstant(true));
-            } catch (Throwable t) {
-                XposedBridge.log(t);
-            }
+        final long startNs = System.nanoTime();
+        // fast path for all the packages that are not ours
+        if (!PACKAGE_NAME.equals(lpparam.packageName)) {
+            StartupTrace.recordLoadPackage(System.nanoTime() - startNs, true);
+            return;
         }
+
+        try {
+            if (DEBUG) log("Hooking isModuleActive method");
+            XposedHelpers.findAndHookMethod(WakeGestureSettings.PlaceholderFragment.class.getName(), 
+                    lpparam.classLoader, "isModuleActive", XC_MethodReplacement.returnConstant(true));
+        } catch (Throwable t) {
+            XposedBridge.log(t);
+        }
+        final long durationNs = System.nanoTime() - startNs;
+        StartupTrace.recordLoadPackage(durationNs, false);
+        if (DEBUG) log("handleLoadPackage: " + durationNs / 1000 + "us");
     }
 
     @Override
     public void initZygote(StartupParam startupParam) throws Throwable {
-        if (!WakeGestureProcessor.supportsWakeGestures()) {
-            log("Device does not support wake gestures");
-            return;
+        final long startNs = System.nanoTime();
+        try {
+            initZygoteInternal();
+        } finally {
+            final long durationNs = System.nanoTime() - startNs;
+            StartupTrace.record(StartupTrace.EVENT_INIT_ZYGOTE, durationNs);
+            if (DEBUG) log("initZygote: " + durationNs / 1000 + "us");
         }
+    }
 
+    private void initZygoteInternal() {
+        // backend detection is left to WakeGestureHandler init in system_server so that
+        // zygote startup does not probe sysfs nor load shape templates
         final String CLASS_PHONE_WINDOW_MANAGER = "com.android.internal.policy.impl.PhoneWindowManager";
         final String CLASS_IWINDOW_MANAGER = "android.view.IWindowManager";
         final String CLASS_WINDOW_MANAGER_FUNCS = "android.view.WindowManagerPolicy.WindowManagerFuncs";
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import com.ceco.wakegestures.preference.AppCatalog;
+import com.ceco.wakegestures.preference.AppCatalogManager;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Marks app catalog entries of changed packages dirty and invalidates catalogs loaded in memory
+ *
+ * Only PACKAGE_CHANGED is received: components enabled or disabled without package update
+ * cannot be told from update times. Installs, updates and removals are found by AppCatalog diff
+ * so app process does not need to be started for each of them; while settings are open
+ * AppCatalogManager watches them with its own runtime receiver.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (data == null || data.getSchemeSpecificPart() == null) return;
+
+        AppCatalog.markDirty(context, data.getSchemeSpecificPart());
+        AppCatalogManager.getInstance().invalidate();
+    }
+}
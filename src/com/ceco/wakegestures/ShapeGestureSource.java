@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import android.util.Log;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Optional backend recognizing user defined shapes drawn on touchscreen while screen is off
+ *
+ * Raw multitouch events of touchscreen are tracked (first slot only) and strokes are matched
+ * by ShapeRecognizer against templates stored in settings app files directory next to
+ * ConfigStore file. Settings app makes it readable for system_server; backend is available
+ * only when templates file exists and touchscreen is found.
+ * Requires kernel that keeps touchscreen powered while screen is off.
+ *
+ * Strokes are matched only once finished and templates can be bound to the five WakeGestures
+ * only; templates file has to be provided as there is no recording UI yet.
+ */
+public class ShapeGestureSource extends GestureSource {
+    private static final String TAG = "WG:ShapeGestureSource";
+
+    public static final String TEMPLATES_FILE_NAME = "wg_shapes.txt";
+
+    private static final String INPUT_PATH = "/sys/class/input";
+    private static final int EV_SYN = 0;
+    private static final int EV_ABS = 3;
+    private static final int SYN_REPORT = 0;
+    private static final int BTN_TOUCH = 330;
+    private static final int ABS_MT_SLOT = 0x2f;
+    private static final int ABS_MT_POSITION_X = 0x35;
+    private static final int ABS_MT_POSITION_Y = 0x36;
+    private static final int ABS_MT_TRACKING_ID = 0x39;
+
+    private final ShapeRecognizer mRecognizer;
+    private final File mInputDevice;
+    private volatile boolean mActive;
+
+    // accessed from input thread only
+    private int mSlot;
+    private boolean mTouching;
+    private boolean mPointChanged;
+    private int mX;
+    private int mY;
+
+    public ShapeGestureSource(File root) {
+        super(root, new int[0]);
+        mRecognizer = loadRecognizer();
+        mInputDevice = (mRecognizer == null ? null : findTouchscreen());
+    }
+
+    /**
+     * Makes templates file readable by system_server the same way ConfigStore file is.
+     * Called from settings app as the file is not written by it.
+     * @param f templates file in settings app files directory
+     * @return false if file does not exist or its permissions could not be changed
+     */
+    public static boolean exposeTemplatesFile(File f) {
+        if (!f.exists()) return false;
+        f.getParentFile().setExecutable(true, false);
+        return f.setReadable(true, false);
+    }
+
+    private ShapeRecognizer loadRecognizer() {
+        File f = file("/data/data/" + ModWakeGestures.PACKAGE_NAME + "/files/" + TEMPLATES_FILE_NAME);
+        if (!f.exists()) return null;
+        try {
+            return ShapeRecognizer.load(f);
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading templates: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Finds first input device reporting ABS_MT_POSITION_X and ABS_MT_POSITION_Y
+     */
+    private File findTouchscreen() {
+        File[] inputDirs = file(INPUT_PATH).listFiles();
+        if (inputDirs == null) return null;
+
+        for (File inputDir : inputDirs) {
+            try {
+                File caps = new File(inputDir, "capabilities/abs");
+                if (!caps.exists() || !hasAbsCapabilities(readFileSingleLine(caps))) continue;
+                String name = readFileSingleLine(new File(inputDir, "name"));
+                File device = findInputDevice(INPUT_PATH, name);
+                if (device != null) return device;
+            } catch (Exception e) {
+                // not an input device directory
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses ABS capability bitmap as printed by kernel: unpadded hex words of kernel
+     * long size, most significant first. ABS codes fit into single 64-bit word
+     * or two 32-bit words.
+     */
+    private static boolean hasAbsCapabilities(String bitmap) {
+        String[] words = bitmap.trim().split(" ");
+        final long bits;
+        if (words.length == 1) {
+            bits = new BigInteger(words[0], 16).longValue();
+        } else if (words.length == 2) {
+            bits = (Long.parseLong(words[0], 16) << 32) | Long.parseLong(words[1], 16);
+        } else {
+            return false;
+        }
+        return ((bits & (1L << ABS_MT_POSITION_X)) != 0 && (bits & (1L << ABS_MT_POSITION_Y)) != 0);
+    }
+
+    @Override
+    public String getName() {
+        return "Shapes";
+    }
+
+    @Override
+    public boolean isSupported() {
+        return (mRecognizer != null && mInputDevice != null);
+    }
+
+    @Override
+    public boolean isGestureEnabled(WakeGesture gesture) {
+        return (mRecognizer != null && mRecognizer.hasTemplate(gesture));
+    }
+
+    @Override
+    public File getInputDevice() {
+        if (mInputDevice == null)
+            throw new UnsupportedOperationException("Unable to determine touchscreen device path");
+        return mInputDevice;
+    }
+
+    @Override
+    public void onScreenStateChanged(boolean screenOn) {
+        // strokes drawn while screen is on are regular touches
+        mActive = !screenOn;
+    }
+
+    @Override
+    public boolean isActive() {
+        // touchscreen is removed from poll set while screen is on so touches do not wake reader
+        return mActive;
+    }
+
+    @Override
+    public int mapEvent(int type, int code, int value) {
+        if (!mActive) {
+            mTouching = false;
+            return -1;
+        }
+
+        if (type == EV_ABS) {
+            if (code == ABS_MT_SLOT) {
+                mSlot = value;
+            } else if (mSlot == 0) {
+                if (code == ABS_MT_TRACKING_ID) {
+                    return (value < 0 ? endStroke() : beginStroke());
+                } else if (code == ABS_MT_POSITION_X) {
+                    mX = value;
+                    mPointChanged = true;
+                } else if (code == ABS_MT_POSITION_Y) {
+                    mY = value;
+                    mPointChanged = true;
+                }
+            }
+        } else if (type == EV_KEY && code == BTN_TOUCH) {
+            return (value == 0 ? endStroke() : beginStroke());
+        } else if (type == EV_SYN && code == SYN_REPORT && mPointChanged) {
+            mPointChanged = false;
+            if (mTouching) {
+                mRecognizer.addPoint(mX, mY);
+            }
+        }
+        return -1;
+    }
+
+    private int beginStroke() {
+        if (!mTouching) {
+            mTouching = true;
+            mRecognizer.beginStroke();
+        }
+        return -1;
+    }
+
+    private int endStroke() {
+        if (!mTouching) return -1;
+        mTouching = false;
+        return mRecognizer.endStroke();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Single stroke shape recognizer based on $1 / Protractor
+ *
+ * Stroke points are collected into preallocated buffers while path length is accumulated
+ * as points arrive. When stroke ends, it is resampled to fixed number of points,
+ * translated to its centroid, scaled uniformly and compared with each template
+ * by cosine similarity. Rotation is not normalized so that orientation of letters matters.
+ *
+ * Templates file contains one template per line: gesture name followed by stroke points
+ *   SWEEP_UP 0,100 0,50 0,0
+ * Empty lines and lines starting with # are ignored.
+ */
+public class ShapeRecognizer {
+    private static final String TAG = "WG:ShapeRecognizer";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_POINTS = 512;
+    private static final int MIN_POINTS = 8;
+    private static final int RESAMPLE_POINTS = 32;
+    private static final float MIN_SCORE = 0.85f;
+
+    private static class Template {
+        final WakeGesture gesture;
+        final float[] vector;
+
+        Template(WakeGesture gesture, float[] vector) {
+            this.gesture = gesture;
+            this.vector = vector;
+        }
+    }
+
+    private final Template[] mTemplates;
+    private final float[] mX = new float[MAX_POINTS];
+    private final float[] mY = new float[MAX_POINTS];
+    private final float[] mVector = new float[RESAMPLE_POINTS * 2];
+    private int mCount;
+    private float mPathLength;
+
+    private ShapeRecognizer(Template[] templates) {
+        mTemplates = templates;
+    }
+
+    /**
+     * Loads templates from file
+     * @param f templates file
+     * @return recognizer or null if file contains no valid templates
+     * @throws IOException on read error
+     */
+    public static ShapeRecognizer load(File f) throws IOException {
+        List<Template> templates = new ArrayList<Template>();
+        BufferedReader reader = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                try {
+                    templates.add(parseTemplate(line));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Invalid template: " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return (templates.isEmpty() ? null :
+            new ShapeRecognizer(templates.toArray(new Template[templates.size()])));
+    }
+
+    private static Template parseTemplate(String line) {
+        String[] tokens = line.split("\\s+");
+        WakeGesture gesture = WakeGesture.valueOf(tokens[0]);
+        if (gesture == WakeGesture.UNKNOWN || tokens.length - 1 < 2)
+            throw new IllegalArgumentException(line);
+
+        ShapeRecognizer r = new ShapeRecognizer(null);
+        for (int i = 1; i < tokens.length; i++) {
+            String[] xy = tokens[i].split(",");
+            if (xy.length != 2)
+                throw new IllegalArgumentException(line);
+            r.addPoint(Float.parseFloat(xy[0]), Float.parseFloat(xy[1]));
+        }
+        if (!r.vectorize())
+            throw new IllegalArgumentException(line);
+        return new Template(gesture, r.mVector.clone());
+    }
+
+    public boolean hasTemplate(WakeGesture gesture) {
+        for (Template t : mTemplates) {
+            if (t.gesture == gesture) return true;
+        }
+        return false;
+    }
+
+    public void beginStroke() {
+        mCount = 0;
+        mPathLength = 0;
+    }
+
+    /**
+     * Adds point to current stroke. Does not allocate.
+     */
+    public void addPoint(float x, float y) {
+        if (mCount == MAX_POINTS) return;
+        if (mCount > 0) {
+            final float d = distance(mX[mCount - 1], mY[mCount - 1], x, y);
+            if (d == 0) return;
+            mPathLength += d;
+        }
+        mX[mCount] = x;
+        mY[mCount] = y;
+        mCount++;
+    }
+
+    /**
+     * Matches current stroke against templates. Does not allocate.
+     * @return gesture ordinal of best matching template or -1 if none matches
+     */
+    public int endStroke() {
+        final long startNs = DEBUG ? System.nanoTime() : 0;
+        if (mCount < MIN_POINTS || !vectorize()) {
+            mCount = 0;
+            return -1;
+        }
+        mCount = 0;
+
+        int best = -1;
+        float bestScore = MIN_SCORE;
+        for (int i = 0; i < mTemplates.length; i++) {
+            final float score = dot(mVector, mTemplates[i].vector);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        if (DEBUG) {
+            final long timeNs = System.nanoTime() - startNs;
+            Log.d(TAG, "Match: template=" + best + "; score=" + bestScore + "; time=" +
+                    timeNs / 1000 + "us; per template=" + timeNs / mTemplates.length + "ns");
+        }
+        return (best < 0 ? -1 : mTemplates[best].gesture.ordinal());
+    }
+
+    /**
+     * Resamples current stroke into mVector, translates it to centroid,
+     * scales it uniformly and normalizes it to unit length
+     * @return false if stroke is degenerated
+     */
+    private boolean vectorize() {
+        if (mCount < 2 || mPathLength == 0) return false;
+
+        // resample to equidistant points
+        final float interval = mPathLength / (RESAMPLE_POINTS - 1);
+        float accumulated = 0;
+        float px = mX[0], py = mY[0];
+        int n = 0;
+        mVector[n++] = px;
+        mVector[n++] = py;
+        int i = 1;
+        while (i < mCount && n < mVector.length) {
+            final float d = distance(px, py, mX[i], mY[i]);
+            if (accumulated + d >= interval && d > 0) {
+                final float t = (interval - accumulated) / d;
+                px = px + t * (mX[i] - px);
+                py = py + t * (mY[i] - py);
+                mVector[n++] = px;
+                mVector[n++] = py;
+                accumulated = 0;
+            } else {
+                accumulated += d;
+                px = mX[i];
+                py = mY[i];
+                i++;
+            }
+        }
+        // rounding may leave last point out
+        while (n < mVector.length) {
+            mVector[n++] = mX[mCount - 1];
+            mVector[n++] = mY[mCount - 1];
+        }
+
+        // translate to centroid and find bounding box
+        float cx = 0, cy = 0;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int j = 0; j < mVector.length; j += 2) {
+            cx += mVector[j];
+            cy += mVector[j + 1];
+            minX = Math.min(minX, mVector[j]);
+            maxX = Math.max(maxX, mVector[j]);
+            minY = Math.min(minY, mVector[j + 1]);
+            maxY = Math.max(maxY, mVector[j + 1]);
+        }
+        cx /= RESAMPLE_POINTS;
+        cy /= RESAMPLE_POINTS;
+
+        // uniform scaling keeps aspect ratio so that lines stay distinguishable
+        final float size = Math.max(maxX - minX, maxY - minY);
+        if (size == 0) return false;
+        float norm = 0;
+        for (int j = 0; j < mVector.length; j += 2) {
+            mVector[j] = (mVector[j] - cx) / size;
+            mVector[j + 1] = (mVector[j + 1] - cy) / size;
+            norm += mVector[j] * mVector[j] + mVector[j + 1] * mVector[j + 1];
+        }
+        norm = (float) Math.sqrt(norm);
+        if (norm == 0) return false;
+        for (int j = 0; j < mVector.length; j++) {
+            mVector[j] /= norm;
+        }
+        return true;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float distance(float x1, float y1, float x2, float y2) {
+        final float dx = x2 - x1;
+        final float dy = y2 - y1;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public int getTemplateCount() {
+        return mTemplates.length;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+/**
+ * Records time spent in Xposed entry points and handler initialization
+ *
+ * Individual events are kept in fixed size ring buffer. handleLoadPackage calls are
+ * additionally aggregated as they happen for every package loaded in the process.
+ * Data recorded in zygote is inherited by processes forked from it.
+ * All events are always recorded as it costs just a nanoTime call and counter update;
+ * only logging them as they happen is left to DEBUG builds.
+ */
+public class StartupTrace {
+    public static final int EVENT_INIT_ZYGOTE = 1;
+    public static final int EVENT_LOAD_PACKAGE = 2;
+    public static final int EVENT_HANDLER_INIT_SYNC = 3;
+    public static final int EVENT_HANDLER_INIT_ASYNC = 4;
+
+    private static final int CAPACITY = 32;
+
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final long[] sTimestamps = new long[CAPACITY];
+    private static final long[] sDurations = new long[CAPACITY];
+    private static int sHead;
+    private static int sCount;
+
+    private static int sLoadPackageCalls;
+    private static int sLoadPackageEarlyExits;
+    private static long sLoadPackageTotalNs;
+    private static long sLoadPackageMaxNs;
+
+    private StartupTrace() { }
+
+    /**
+     * Records event into ring buffer
+     * @param event one of EVENT_* values
+     * @param durationNs duration of event in nanoseconds
+     */
+    public static synchronized void record(int event, long durationNs) {
+        sEvents[sHead] = event;
+        sTimestamps[sHead] = System.currentTimeMillis();
+        sDurations[sHead] = durationNs;
+        sHead = (sHead + 1) % CAPACITY;
+        if (sCount < CAPACITY) sCount++;
+    }
+
+    /**
+     * Records handleLoadPackage call. Only calls that were not early exits
+     * are recorded into ring buffer.
+     * @param durationNs duration of call in nanoseconds
+     * @param earlyExit true if package was not of interest
+     */
+    public static void recordLoadPackage(long durationNs, boolean earlyExit) {
+        synchronized (StartupTrace.class) {
+            sLoadPackageCalls++;
+            sLoadPackageTotalNs += durationNs;
+            if (durationNs > sLoadPackageMaxNs) {
+                sLoadPackageMaxNs = durationNs;
+            }
+            if (earlyExit) {
+                sLoadPackageEarlyExits++;
+                return;
+            }
+        }
+        record(EVENT_LOAD_PACKAGE, durationNs);
+    }
+
+    public static synchronized String dump() {
+        StringBuilder sb = new StringBuilder("StartupTrace:");
+        sb.append("\n  handleLoadPackage: calls=").append(sLoadPackageCalls)
+            .append("; earlyExits=").append(sLoadPackageEarlyExits)
+            .append("; total=").append(sLoadPackageTotalNs / 1000).append("us")
+            .append("; avg=").append(sLoadPackageCalls == 0 ? 0 :
+                    sLoadPackageTotalNs / sLoadPackageCalls).append("ns")
+            .append("; max=").append(sLoadPackageMaxNs / 1000).append("us");
+
+        final int start = (sHead - sCount + CAPACITY) % CAPACITY;
+        for (int i = 0; i < sCount; i++) {
+            final int idx = (start + i) % CAPACITY;
+            sb.append("\n  ").append(sTimestamps[idx]).append(" ")
+                .append(eventName(sEvents[idx])).append(": ")
+                .append(sDurations[idx] / 1000).append("us");
+        }
+        return sb.toString();
+    }
+
+    private static String eventName(int event) {
+        switch (event) {
+            case EVENT_INIT_ZYGOTE: return "initZygote";
+            case EVENT_LOAD_PACKAGE: return "handleLoadPackage";
+            case EVENT_HANDLER_INIT_SYNC: return "handlerInitSync";
+            case EVENT_HANDLER_INIT_ASYNC: return "handlerInitAsync";
+            default: return "event" + event;
+        }
+    }
+}
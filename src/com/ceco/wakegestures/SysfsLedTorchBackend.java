@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Torch backend writing brightness of flash LED class device directly
+ *
+ * LEDs under /sys/class/leds whose name contains "torch" are preferred over those
+ * containing "flash". Backend is only available when brightness file is writable
+ * by current process.
+ */
+public class SysfsLedTorchBackend implements ITorchBackend {
+    private static final String LEDS_PATH = "/sys/class/leds";
+    private static final String[] NAME_PATTERNS = new String[] { "torch", "flash" };
+
+    private final File mBrightnessFile;
+    private final byte[] mOnValue;
+    private final byte[] mOffValue = "0\n".getBytes();
+
+    private SysfsLedTorchBackend(File ledDir) {
+        mBrightnessFile = new File(ledDir, "brightness");
+        mOnValue = (getMaxBrightness(ledDir) + "\n").getBytes();
+    }
+
+    /**
+     * Finds writable flash LED
+     * @param root root directory, "/" for real device
+     * @return backend or null if there is no usable LED
+     */
+    public static SysfsLedTorchBackend find(File root) {
+        File[] leds = new File(root, LEDS_PATH).listFiles();
+        if (leds == null) return null;
+
+        for (String pattern : NAME_PATTERNS) {
+            for (File led : leds) {
+                if (!led.getName().toLowerCase().contains(pattern)) continue;
+                File brightness = new File(led, "brightness");
+                if (brightness.exists() && brightness.canWrite()) {
+                    return new SysfsLedTorchBackend(led);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int getMaxBrightness(File ledDir) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(new File(ledDir, "max_brightness")));
+            int value = Integer.valueOf(reader.readLine().trim());
+            return (value > 0 ? value : 1);
+        } catch (Exception e) {
+            // some drivers do not report max brightness; any non-zero value turns LED on
+            return 1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "SysfsLed:" + mBrightnessFile.getParentFile().getName();
+    }
+
+    @Override
+    public void setTorch(boolean on) throws IOException {
+        FileOutputStream fos = new FileOutputStream(mBrightnessFile);
+        try {
+            fos.write(on ? mOnValue : mOffValue);
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Override
+    public boolean isHoldingResources() {
+        return false;
+    }
+
+    @Override
+    public void release() { }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.UserHandle;
+
+import de.robv.android.xposed.XposedHelpers;
+
+/**
+ * Controls torch from system_server without starting TorchService for every toggle
+ *
+ * When flash LED brightness is writable by system_server, torch is toggled in-process.
+ * Otherwise TorchService is bound and toggles are sent as one-way binder transactions.
+ * Binding is kept only for a short while after last toggle so that it does not keep app process
+ * alive; until the service gets connected, toggles fall back to starting the service.
+ *
+ * Service lifecycle with binding: bind -> binder toggle on (service starts itself so that it is
+ * no longer bound only) -> idle unbind (service keeps running, torch stays on) -> toggle off
+ * or torch timeout (service stops itself).
+ */
+public class TorchController {
+    private static final String TAG = "WG:TorchController";
+    private static final long LED_TIMEOUT = 600000;
+    // how long service stays bound after last toggle
+    private static final long BIND_IDLE_TIMEOUT = 30000;
+    private static final int USER_CURRENT = -2;
+
+    private final Context mContext;
+    private final Context mWgContext;
+    private final Handler mHandler;
+    private final PowerManager mPm;
+    private SysfsLedTorchBackend mLedBackend;
+    private boolean mLedProbed;
+    private boolean mLedOn;
+    private WakeLock mLedWakeLock;
+    private IBinder mService;
+    private boolean mBindRequested;
+    private long mBindStartNs;
+
+    // latency stats
+    private int mLedToggles;
+    private long mLedToggleTimeNs;
+    private int mBinderToggles;
+    private long mBinderToggleTimeNs;
+    private int mStartToggles;
+    private long mStartToggleTimeNs;
+    private long mBindTimeNs;
+    private int mBinds;
+
+    public TorchController(Context context, Context wgContext, Handler handler) {
+        mContext = context;
+        mWgContext = wgContext;
+        mHandler = handler;
+        mPm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    public synchronized void toggle() {
+        final long startNs = System.nanoTime();
+
+        if (!mLedProbed) {
+            mLedProbed = true;
+            mLedBackend = SysfsLedTorchBackend.find(new File("/"));
+            if (mLedBackend != null) {
+                ModWakeGestures.log(TAG + ": using " + mLedBackend.getName());
+            }
+        }
+        if (mLedBackend != null) {
+            if (toggleLed()) {
+                mLedToggles++;
+                mLedToggleTimeNs += logLatency("led", startNs);
+                return;
+            }
+            // e.g. denied by SELinux despite file permissions
+            mLedBackend = null;
+        }
+
+        mHandler.removeCallbacks(mUnbindRunnable);
+        mHandler.postDelayed(mUnbindRunnable, BIND_IDLE_TIMEOUT);
+
+        if (mService != null) {
+            if (transactToggle()) {
+                mBinderToggles++;
+                mBinderToggleTimeNs += logLatency("binder", startNs);
+                return;
+            }
+            mService = null;
+        }
+
+        try {
+            startService();
+            mStartToggles++;
+            mStartToggleTimeNs += logLatency("startService", startNs);
+        } catch (Throwable t) {
+            ModWakeGestures.log(TAG + ": error starting torch service: " + t.getMessage());
+        }
+        bindService();
+    }
+
+    private boolean toggleLed() {
+        try {
+            mLedBackend.setTorch(!mLedOn);
+            mLedOn = !mLedOn;
+        } catch (Exception e) {
+            ModWakeGestures.log(TAG + ": error writing LED: " + e.getMessage());
+            return false;
+        }
+
+        mHandler.removeCallbacks(mLedTimeoutRunnable);
+        if (mLedOn) {
+            // keeps CPU awake so that timeout fires
+            mLedWakeLock = mPm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            mLedWakeLock.acquire(LED_TIMEOUT);
+            mHandler.postDelayed(mLedTimeoutRunnable, LED_TIMEOUT);
+        } else if (mLedWakeLock != null) {
+            if (mLedWakeLock.isHeld()) {
+                mLedWakeLock.release();
+            }
+            mLedWakeLock = null;
+        }
+
+        Intent i = new Intent(TorchService.ACTION_TORCH_STATUS_CHANGED);
+        i.putExtra(TorchService.EXTRA_TORCH_STATUS,
+                mLedOn ? TorchService.TORCH_STATUS_ON : TorchService.TORCH_STATUS_OFF);
+        sendBroadcast(i);
+        return true;
+    }
+
+    private Runnable mLedTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TorchController.this) {
+                if (mLedOn && mLedBackend != null) {
+                    toggleLed();
+                }
+            }
+        }
+    };
+
+    private boolean transactToggle() {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(TorchService.DESCRIPTOR);
+            return mService.transact(TorchService.TRANSACTION_TOGGLE, data, null, IBinder.FLAG_ONEWAY);
+        } catch (Exception e) {
+            ModWakeGestures.log(TAG + ": error calling torch service: " + e.getMessage());
+            return false;
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * Fetches cold/warm toggle stats from torch service. Blocks on binder call to app process
+     * so it is meant for DUMP_STATS only.
+     */
+    public String getServiceStats() {
+        final IBinder service;
+        synchronized (this) {
+            service = mService;
+        }
+        if (service == null) return "WG:TorchService: not bound";
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(TorchService.DESCRIPTOR);
+            service.transact(TorchService.TRANSACTION_DUMP, data, reply, 0);
+            return reply.readString();
+        } catch (Exception e) {
+            return "WG:TorchService: error fetching stats: " + e.getMessage();
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    private Intent getServiceIntent() {
+        Intent intent = new Intent(mWgContext, TorchService.class);
+        intent.setAction(TorchService.ACTION_TOGGLE_TORCH);
+        return intent;
+    }
+
+    private static UserHandle getCurrentUser() throws Exception {
+        Constructor<?> uhConst = XposedHelpers.findConstructorExact(UserHandle.class, int.class);
+        return (UserHandle) uhConst.newInstance(USER_CURRENT);
+    }
+
+    private void startService() throws Exception {
+        XposedHelpers.callMethod(mContext, "startServiceAsUser", getServiceIntent(), getCurrentUser());
+    }
+
+    private void sendBroadcast(Intent intent) {
+        try {
+            XposedHelpers.callMethod(mContext, "sendBroadcastAsUser", intent, getCurrentUser());
+        } catch (Throwable t) {
+            ModWakeGestures.log(TAG + ": error sending broadcast: " + t.getMessage());
+        }
+    }
+
+    /**
+     * Binds torch service for subsequent toggles; binding is released by mUnbindRunnable
+     * once no toggle arrived for BIND_IDLE_TIMEOUT
+     */
+    private void bindService() {
+        if (mBindRequested) return;
+        mBindRequested = true;
+        mBinds++;
+        mBindStartNs = System.nanoTime();
+        try {
+            Intent intent = new Intent(mWgContext, TorchService.class);
+            XposedHelpers.callMethod(mContext, "bindServiceAsUser", intent, mConnection,
+                    Context.BIND_AUTO_CREATE, getCurrentUser());
+        } catch (Throwable t) {
+            ModWakeGestures.log(TAG + ": error binding torch service: " + t.getMessage());
+            mBindRequested = false;
+        }
+    }
+
+    private Runnable mUnbindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TorchController.this) {
+                if (!mBindRequested) return;
+                mBindRequested = false;
+                mService = null;
+                // service started itself when torch went on so unbinding does not destroy it
+                try {
+                    mContext.unbindService(mConnection);
+                } catch (Throwable t) {
+                    ModWakeGestures.log(TAG + ": error unbinding torch service: " + t.getMessage());
+                }
+            }
+        }
+    };
+
+    private ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (TorchController.this) {
+                // connection may arrive after idle timeout already released binding
+                if (!mBindRequested) return;
+                mService = service;
+                if (mBindTimeNs == 0) {
+                    mBindTimeNs = System.nanoTime() - mBindStartNs;
+                    if (ModWakeGestures.DEBUG) ModWakeGestures.log(TAG + ": service bound in " +
+                            mBindTimeNs / 1000000 + "ms");
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            synchronized (TorchController.this) {
+                mService = null;
+            }
+        }
+    };
+
+    private long logLatency(String path, long startNs) {
+        final long timeNs = System.nanoTime() - startNs;
+        if (ModWakeGestures.DEBUG) ModWakeGestures.log(TAG + ": toggled via " + path + " in " +
+                timeNs / 1000 + "us");
+        return timeNs;
+    }
+
+    private static long avgUs(long totalNs, int count) {
+        return (count == 0 ? 0 : totalNs / count / 1000);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + ": led=" + mLedToggles + " (avg " + avgUs(mLedToggleTimeNs, mLedToggles) +
+                "us); binder=" + mBinderToggles + " (avg " + avgUs(mBinderToggleTimeNs, mBinderToggles) +
+                "us); startService=" + mStartToggles + " (avg " + avgUs(mStartToggleTimeNs, mStartToggles) +
+                "us); bind=" + mBindTimeNs / 1000000 + "ms; binds=" + mBinds;
+    }
+}
@@ -18,19 +18,30 @@ package com.ceco.wakegestures;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.SurfaceTexture;
-import android.hardware.Camera;
+import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
 
 public class TorchService extends Service {
     private static final String TAG = "WG:TorchService";
+    private static final boolean DEBUG = false;
 
     public static final String ACTION_TOGGLE_TORCH = "wakegestures.intent.action.TOGGLE_TORCH";
     public static final String ACTION_TORCH_STATUS_CHANGED = "wakegestures.intent.action.TORCH_STATUS_CHANGED";
@@ -39,19 +50,63 @@ public class TorchService extends Service {
     public static final int TORCH_STATUS_ON = 1;
     public static final int TORCH_STATUS_ERROR = -1;
 
+    // binder interface used by system_server to toggle torch of bound service (one-way)
+    // and to fetch its toggle stats for DUMP_STATS
+    public static final String DESCRIPTOR = "com.ceco.wakegestures.TorchService";
+    public static final int TRANSACTION_TOGGLE = IBinder.FIRST_CALL_TRANSACTION;
+    public static final int TRANSACTION_DUMP = IBinder.FIRST_CALL_TRANSACTION + 1;
+
     private static final boolean USE_WAKE_LOCK = true;
+    // how long camera is kept open after torch was turned off in warm mode
+    private static final long WARM_IDLE_TIMEOUT = 15000;
 
-    private Camera mCamera;
+    private ITorchBackend mBackend;
+    private SharedPreferences mPrefs;
+    private volatile boolean mWarmMode;
+    // kept across service instances of app process as service is destroyed when torch goes off
+    private static int sColdToggles;
+    private static int sWarmToggles;
+    private static long sColdToggleTimeMs;
+    private static long sWarmToggleTimeMs;
+    // desired state is updated by main thread, actual status by camera thread only
+    private volatile boolean mTorchDesiredOn;
+    private volatile int mLastStartId;
     private int mTorchStatus = TORCH_STATUS_OFF;
+    private volatile long mRequestTimeMs;
     private Notification mTorchNotif;
     private PendingIntent mPendingIntent;
     private WakeLock mPartialWakeLock;
     private int mTorchTimeout;
-    private Handler mHandler;
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+
+    private final IBinder mBinder = new Binder() {
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) {
+            if (code == TRANSACTION_TOGGLE || code == TRANSACTION_DUMP) {
+                // service is exported for the toggle intent; binder calls are for system_server only
+                final int uid = Binder.getCallingUid();
+                if (uid != Process.SYSTEM_UID && uid != Process.myUid()) {
+                    throw new SecurityException("Torch service call not allowed for uid " + uid);
+                }
+                data.enforceInterface(DESCRIPTOR);
+                if (code == TRANSACTION_TOGGLE) {
+                    if (toggleTorch()) {
+                        // bound only service would be destroyed by idle unbind with torch still on
+                        startService(new Intent(TorchService.this, TorchService.class));
+                    }
+                } else {
+                    reply.writeString(getStats());
+                }
+                return true;
+            }
+            return false;
+        }
+    };
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 
     @Override
@@ -72,40 +127,126 @@ public class TorchService extends Service {
         mTorchNotif = builder.build();
 
         mTorchTimeout = 600000;
-        mHandler = new Handler();
+
+        // all camera I/O is serialized on dedicated thread so that main thread never blocks
+        mCameraThread = new HandlerThread("TorchCamera", Process.THREAD_PRIORITY_FOREGROUND);
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+
+        // prefer direct LED access and fall back to camera
+        mBackend = SysfsLedTorchBackend.find(new File("/"));
+        if (mBackend == null) {
+            mBackend = new CameraTorchBackend();
+        }
+        if (DEBUG) Log.d(TAG, "Using torch backend: " + mBackend.getName());
+
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mWarmMode = mPrefs.getBoolean(WakeGestureSettings.PREF_KEY_TORCH_WARM_MODE, false);
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
     }
 
+    // kept in field as preferences hold listeners weakly
+    private OnSharedPreferenceChangeListener mPrefsListener = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (WakeGestureSettings.PREF_KEY_TORCH_WARM_MODE.equals(key)) {
+                mWarmMode = prefs.getBoolean(key, false);
+            }
+        }
+    };
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
         if (intent != null && ACTION_TOGGLE_TORCH.equals(intent.getAction())) {
             toggleTorch();
-            return START_REDELIVER_INTENT;
+            // service idling in warm mode must not toggle torch on again when restarted
+            return (mTorchDesiredOn ? START_REDELIVER_INTENT : START_NOT_STICKY);
+        } else if (mTorchDesiredOn) {
+            // started by itself on binder toggle; stopped once torch goes off
+            return START_NOT_STICKY;
         } else {
-            stopSelf();
+            stopSelf(startId);
             return START_NOT_STICKY;
         }
         
     }
 
-    private synchronized void toggleTorch() {
-        if (mTorchStatus != TORCH_STATUS_ON) {
+    /**
+     * Called from main thread or binder thread
+     * @return new desired torch state
+     */
+    private synchronized boolean toggleTorch() {
+        setTorchDesiredOn(!mTorchDesiredOn);
+        return mTorchDesiredOn;
+    }
+
+    /**
+     * Updates desired torch state and schedules it to be applied on camera thread.
+     * Requests arriving before camera thread catches up collapse into the latest one.
+     */
+    private void setTorchDesiredOn(boolean on) {
+        if (DEBUG) mRequestTimeMs = SystemClock.elapsedRealtime();
+        mTorchDesiredOn = on;
+        mCameraHandler.removeCallbacks(mApplyTorchStateRunnable);
+        mCameraHandler.post(mApplyTorchStateRunnable);
+    }
+
+    private void applyTorchState() {
+        final boolean on = mTorchDesiredOn;
+        if (on == (mTorchStatus == TORCH_STATUS_ON)) {
+            if (DEBUG) Log.d(TAG, "Torch already in desired state");
+            if (!on && !mBackend.isHoldingResources()) {
+                stopSelf(mLastStartId);
+            }
+            return;
+        }
+
+        final long startMs = SystemClock.elapsedRealtime();
+        final boolean warm = mBackend.isHoldingResources();
+        if (on) {
             setTorchOn();
         } else {
             setTorchOff();
         }
+        recordToggleLatency(warm, SystemClock.elapsedRealtime() - startMs);
     }
 
-    private synchronized void setTorchOn() {
-        try {
-            if (mCamera == null) {
-                mCamera = Camera.open();
+    private void recordToggleLatency(boolean warm, long timeMs) {
+        synchronized (TorchService.class) {
+            if (warm) {
+                sWarmToggles++;
+                sWarmToggleTimeMs += timeMs;
+            } else {
+                sColdToggles++;
+                sColdToggleTimeMs += timeMs;
             }
-            Camera.Parameters camParams = mCamera.getParameters();
-            camParams.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
-            mCamera.setParameters(camParams);
-            mCamera.setPreviewTexture(new SurfaceTexture(0));
-            mCamera.startPreview();
-            mTorchStatus = TORCH_STATUS_ON;
+        }
+        if (DEBUG) Log.d(TAG, "Torch toggled in " + timeMs + "ms (" + (warm ? "warm" : "cold") +
+                "; queued " + (SystemClock.elapsedRealtime() - timeMs - mRequestTimeMs) + "ms); " +
+                getStats());
+    }
+
+    private static synchronized String getStats() {
+        return TAG + ": cold=" + sColdToggles + " (avg " +
+                (sColdToggles == 0 ? 0 : sColdToggleTimeMs / sColdToggles) + "ms); warm=" +
+                sWarmToggles + " (avg " + (sWarmToggles == 0 ? 0 : sWarmToggleTimeMs / sWarmToggles) +
+                "ms)";
+    }
+
+    private void setTorchStatus(int status) {
+        if (mTorchStatus == status) return;
+        mTorchStatus = status;
+        Intent i = new Intent(ACTION_TORCH_STATUS_CHANGED);
+        i.putExtra(EXTRA_TORCH_STATUS, status);
+        sendBroadcast(i);
+    }
+
+    private void setTorchOn() {
+        try {
+            mCameraHandler.removeCallbacks(mWarmIdleRunnable);
+            mBackend.setTorch(true);
+            setTorchStatus(TORCH_STATUS_ON);
             startForeground(2, mTorchNotif);
 
             if (USE_WAKE_LOCK) {
@@ -113,61 +254,109 @@ public class TorchService extends Service {
                 mPartialWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
                 mPartialWakeLock.acquire(mTorchTimeout > 0 ? mTorchTimeout : 3600000);
             }
-            mHandler.removeCallbacks(mTorchTimeoutRunnable);
+            mCameraHandler.removeCallbacks(mTorchTimeoutRunnable);
             if (mTorchTimeout > 0) {
-                mHandler.postDelayed(mTorchTimeoutRunnable, mTorchTimeout);
+                mCameraHandler.postDelayed(mTorchTimeoutRunnable, mTorchTimeout);
             }
         } catch (Exception e) {
-            mTorchStatus = TORCH_STATUS_ERROR;
             e.printStackTrace();
-        } finally {
-            Intent i = new Intent(ACTION_TORCH_STATUS_CHANGED);
-            i.putExtra(EXTRA_TORCH_STATUS, mTorchStatus);
-            sendBroadcast(i);
-            if (mTorchStatus == TORCH_STATUS_ERROR) {
-                stopSelf();
-            }
+            setTorchStatus(TORCH_STATUS_ERROR);
+            mTorchDesiredOn = false;
+            releaseCamera();
+            stopSelf(mLastStartId);
         }
     }
 
-    private synchronized void setTorchOff() {
+    private void setTorchOff() {
         try {
-            mHandler.removeCallbacks(mTorchTimeoutRunnable);
+            mCameraHandler.removeCallbacks(mTorchTimeoutRunnable);
             if (mPartialWakeLock != null && mPartialWakeLock.isHeld()) {
                 mPartialWakeLock.release();
                 mPartialWakeLock = null;
             }
-            if (mCamera != null) {
-                Camera.Parameters camParams = mCamera.getParameters();
-                camParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-                mCamera.setParameters(camParams);
-                mCamera.stopPreview();
-                mCamera.release();
-                mCamera = null;
-            }
-            mTorchStatus = TORCH_STATUS_OFF;
+            mBackend.setTorch(false);
+            setTorchStatus(TORCH_STATUS_OFF);
         } catch (Exception e) {
-            mTorchStatus = TORCH_STATUS_ERROR;
             e.printStackTrace();
+            setTorchStatus(TORCH_STATUS_ERROR);
         } finally {
-            Intent i = new Intent(ACTION_TORCH_STATUS_CHANGED);
-            i.putExtra(EXTRA_TORCH_STATUS, mTorchStatus);
-            sendBroadcast(i);
             stopForeground(true);
-            stopSelf();
+            if (mWarmMode && mTorchStatus == TORCH_STATUS_OFF && mBackend.isHoldingResources()) {
+                // keep camera warm for a while in case torch gets toggled again
+                mCameraHandler.postDelayed(mWarmIdleRunnable, WARM_IDLE_TIMEOUT);
+            } else {
+                releaseCamera();
+                // keeps service alive in case another toggle arrived in the meantime
+                stopSelf(mLastStartId);
+            }
+        }
+    }
+
+    private void releaseCamera() {
+        mCameraHandler.removeCallbacks(mWarmIdleRunnable);
+        mBackend.release();
+    }
+
+    private void releaseIdleCamera() {
+        if (mTorchStatus != TORCH_STATUS_ON) {
+            releaseCamera();
+            stopSelf(mLastStartId);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCameraHandler.post(mWarmIdleRunnable);
         }
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mCameraHandler.post(mWarmIdleRunnable);
+    }
+
     @Override
     public void onDestroy() {
-        setTorchOff();
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+        mTorchDesiredOn = false;
+        mCameraHandler.removeCallbacksAndMessages(null);
+        // pending work is dropped; turn torch off and quit camera thread once it's done
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mTorchStatus == TORCH_STATUS_ON) {
+                    setTorchOff();
+                }
+                releaseCamera();
+                mCameraThread.quit();
+            }
+        });
         super.onDestroy();
     }
 
+    private Runnable mApplyTorchStateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyTorchState();
+        }
+    };
+
     private Runnable mTorchTimeoutRunnable = new Runnable() {
         @Override
         public void run() {
-            setTorchOff();
+            mTorchDesiredOn = false;
+            applyTorchState();
+        }
+    };
+
+    private Runnable mWarmIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (DEBUG) Log.d(TAG, "Releasing idle camera");
+            releaseIdleCamera();
         }
     };
 }
@@ -18,28 +18,50 @@ package com.ceco.wakegestures;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Bitmap.Config;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.util.DisplayMetrics;
 
 public class Utils {
+    // launcher icons are designed at 48dp
+    private static final int ICON_SIZE_DP = 48;
+    private static final int[] ICON_DENSITIES = new int[] {
+        DisplayMetrics.DENSITY_MEDIUM,
+        DisplayMetrics.DENSITY_HIGH,
+        DisplayMetrics.DENSITY_XHIGH,
+        DisplayMetrics.DENSITY_XXHIGH,
+        640 // DENSITY_XXXHIGH
+    };
 
-    public static Bitmap drawableToBitmap (Drawable drawable) {
+    /**
+     * Renders drawable directly at given size without intermediate full size bitmap
+     */
+    public static Bitmap drawableToBitmap(Drawable drawable, int width, int height) {
         if (drawable == null) return null;
 
-        if (drawable instanceof BitmapDrawable) {
-            return ((BitmapDrawable)drawable).getBitmap();
-        }
-
-        int width = drawable.getIntrinsicWidth();
-        width = width > 0 ? width : 1;
-        int height = drawable.getIntrinsicHeight();
-        height = height > 0 ? height : 1;
-
         Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap); 
-        drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+        drawDrawable(drawable, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Renders drawable scaled to size of target bitmap, replacing its content
+     */
+    public static void drawDrawable(Drawable drawable, Bitmap target) {
+        target.eraseColor(0);
+        Canvas canvas = new Canvas(target);
+        drawable.setBounds(0, 0, target.getWidth(), target.getHeight());
         drawable.draw(canvas);
+    }
 
-        return bitmap;
+    /**
+     * @return lowest density whose launcher icon resources are at least given size
+     */
+    public static int getIconDensity(int sizePx) {
+        for (int density : ICON_DENSITIES) {
+            if (ICON_SIZE_DP * density / DisplayMetrics.DENSITY_DEFAULT >= sizePx) {
+                return density;
+            }
+        }
+        return ICON_DENSITIES[ICON_DENSITIES.length - 1];
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import android.content.Intent;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+import com.ceco.wakegestures.preference.AppPickerPreference;
+
+/**
+ * Immutable versioned snapshot of wake gesture handler configuration
+ *
+ * New snapshots are created off the gesture path using Builder, which copies
+ * previous snapshot and applies changes. Published snapshot is never modified
+ * so gesture path always sees consistent configuration. Macro actions are parsed
+ * when snapshot is built so gesture path never parses macro steps.
+ */
+public final class WakeGestureConfig {
+    private static final int GESTURE_COUNT = WakeGesture.values().length;
+
+    private final int mVersion;
+    private final Intent[] mActions;
+    private final Intent[] mDoubleActions;
+    private final GestureRules[] mRules;
+    private final GestureRules[] mDoubleRules;
+    private final Map<Intent, ActionMacro> mMacros;
+    private final boolean mRequireActiveMusic;
+    private final boolean mPocketMode;
+
+    private WakeGestureConfig(Builder builder) {
+        mVersion = builder.mVersion;
+        mActions = builder.mActions.clone();
+        mDoubleActions = builder.mDoubleActions.clone();
+        mRules = builder.mRules.clone();
+        mDoubleRules = builder.mDoubleRules.clone();
+        mRequireActiveMusic = builder.mRequireActiveMusic;
+        mPocketMode = builder.mPocketMode;
+
+        // keyed by identity as intents of snapshot are never modified
+        mMacros = new IdentityHashMap<Intent, ActionMacro>();
+        for (int i = 0; i < GESTURE_COUNT; i++) {
+            addMacro(mActions[i], builder.mBaseMacros);
+            addMacro(mDoubleActions[i], builder.mBaseMacros);
+            addRulesMacros(mRules[i], builder.mBaseMacros);
+            addRulesMacros(mDoubleRules[i], builder.mBaseMacros);
+        }
+    }
+
+    private void addRulesMacros(GestureRules rules, Map<Intent, ActionMacro> baseMacros) {
+        if (rules == null) return;
+        for (int i = 0; i < rules.getActionCount(); i++) {
+            addMacro(rules.getAction(i), baseMacros);
+        }
+    }
+
+    private void addMacro(Intent intent, Map<Intent, ActionMacro> baseMacros) {
+        if (intent == null || !AppPickerPreference.ACTION_MACRO.equals(intent.getAction()) ||
+                mMacros.containsKey(intent)) return;
+
+        // intents of unchanged slots are carried over from base so their macros are reused
+        ActionMacro macro = (baseMacros == null ? null : baseMacros.get(intent));
+        if (macro == null) {
+            macro = ActionMacro.parse(intent.getStringExtra(AppPickerPreference.EXTRA_MACRO_STEPS));
+        }
+        if (macro != null) {
+            mMacros.put(intent, macro);
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public Intent getAction(WakeGesture gesture, boolean dbl) {
+        return dbl ? mDoubleActions[gesture.ordinal()] : mActions[gesture.ordinal()];
+    }
+
+    public GestureRules getRules(WakeGesture gesture, boolean dbl) {
+        return dbl ? mDoubleRules[gesture.ordinal()] : mRules[gesture.ordinal()];
+    }
+
+    /**
+     * @param action macro action intent obtained from this snapshot
+     * @return parsed macro or null if action is not a valid macro of this snapshot
+     */
+    public ActionMacro getMacro(Intent action) {
+        return mMacros.get(action);
+    }
+
+    /**
+     * @return true if gesture has either action or rules assigned
+     */
+    public boolean isConfigured(WakeGesture gesture, boolean dbl) {
+        return (getAction(gesture, dbl) != null || getRules(gesture, dbl) != null);
+    }
+
+    public boolean isActiveMusicRequired() {
+        return mRequireActiveMusic;
+    }
+
+    public boolean isPocketModeEnabled() {
+        return mPocketMode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("WakeGestureConfig v");
+        sb.append(mVersion).append(": requireActiveMusic=").append(mRequireActiveMusic)
+            .append("; pocketMode=").append(mPocketMode);
+        for (WakeGesture wg : WakeGesture.values()) {
+            if (wg == WakeGesture.UNKNOWN) continue;
+            sb.append("\n").append(wg).append(": ").append(getAction(wg, false))
+                .append("; dbl: ").append(getAction(wg, true));
+            if (getRules(wg, false) != null || getRules(wg, true) != null) {
+                sb.append("; has rules");
+            }
+        }
+        return sb.toString();
+    }
+
+    public static class Builder {
+        private int mVersion;
+        private Intent[] mActions;
+        private Intent[] mDoubleActions;
+        private GestureRules[] mRules;
+        private GestureRules[] mDoubleRules;
+        private boolean mRequireActiveMusic;
+        private boolean mPocketMode;
+        private Map<Intent, ActionMacro> mBaseMacros;
+
+        /**
+         * Creates builder for initial configuration
+         */
+        public Builder() {
+            mVersion = 1;
+            mActions = new Intent[GESTURE_COUNT];
+            mDoubleActions = new Intent[GESTURE_COUNT];
+            mRules = new GestureRules[GESTURE_COUNT];
+            mDoubleRules = new GestureRules[GESTURE_COUNT];
+        }
+
+        /**
+         * Creates builder for next version of existing configuration
+         * @param base configuration to start from
+         */
+        public Builder(WakeGestureConfig base) {
+            mVersion = base.mVersion + 1;
+            mActions = base.mActions.clone();
+            mDoubleActions = base.mDoubleActions.clone();
+            mRules = base.mRules.clone();
+            mDoubleRules = base.mDoubleRules.clone();
+            mRequireActiveMusic = base.mRequireActiveMusic;
+            mPocketMode = base.mPocketMode;
+            mBaseMacros = base.mMacros;
+        }
+
+        public Builder setAction(WakeGesture gesture, boolean dbl, Intent action) {
+            if (dbl) {
+                mDoubleActions[gesture.ordinal()] = action;
+            } else {
+                mActions[gesture.ordinal()] = action;
+            }
+            return this;
+        }
+
+        public Builder setRules(WakeGesture gesture, boolean dbl, GestureRules rules) {
+            if (dbl) {
+                mDoubleRules[gesture.ordinal()] = rules;
+            } else {
+                mRules[gesture.ordinal()] = rules;
+            }
+            return this;
+        }
+
+        public Builder setActiveMusicRequired(boolean required) {
+            mRequireActiveMusic = required;
+            return this;
+        }
+
+        public Builder setPocketModeEnabled(boolean enabled) {
+            mPocketMode = enabled;
+            return this;
+        }
+
+        public WakeGestureConfig build() {
+            return new WakeGestureConfig(this);
+        }
+    }
+}
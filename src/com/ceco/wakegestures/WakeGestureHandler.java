@@ -15,11 +15,21 @@
 
 package com.ceco.wakegestures;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -51,95 +61,260 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
 
     private static final String CLASS_SCREEN_ON_LISTENER = 
             "android.view.WindowManagerPolicy.ScreenOnListener";
+    private static final int MAX_BUFFERED_GESTURES = 4;
+    private static final int EVENT_LOG_CAPACITY = 128;
+    private static final String EVENT_LOG_DUMP_FILE = "/data/system/wakegestures_events.txt";
+    // threads running independent macro steps concurrently; they exit when idle
+    private static final int MACRO_THREADS = 3;
+    private static final int MACRO_THREAD_KEEP_ALIVE_S = 30;
+
+    // adb shell am broadcast -a wakegestures.intent.action.DUMP_STATS
+    // sender must hold android.permission.DUMP which shell has
+    public static final String ACTION_DUMP_STATS = "wakegestures.intent.action.DUMP_STATS";
 
     private Context mContext;
     private Context mWgContext;
     private XSharedPreferences mPrefs;
     private WakeGestureProcessor mWgp;
-    private Map<WakeGesture, Intent> mWakeGestures;
-    private Map<WakeGesture, Intent> mDoubleWakeGestures;
+    private final AtomicReference<WakeGestureConfig> mConfig = new AtomicReference<WakeGestureConfig>();
     private PowerManager mPm;
     private Object mPhoneWindowManager;
-    private boolean mDismissKeyguardOnNextScreenOn;
+    private volatile boolean mDismissKeyguardOnNextScreenOn;
+    private Method mScreenOnMethod;
     private Unhook mScreenOnUnhook;
+    // screen-on hook stats; screen-ons count calls a permanently installed hook would get
+    private int mScreenOnHookCalls;
+    private long mScreenOnHookTimeNs;
+    private int mScreenOnHookInstalls;
+    private long mScreenOnHookInstallTimeNs;
+    private int mScreenOnHookUninstalls;
+    private long mScreenOnHookUninstallTimeNs;
+    private int mScreenOns;
     private WakeGesture mPendingGesture;
+    private WakeGestureConfig mPendingConfig;
+    private long mPendingKernelTimeUs;
+    private int mPendingDispatchUs;
+    private long mPendingReceivedNs;
     private Handler mHandler;
     private WakeLock mWakeLock;
-    private SensorManager mSensorManager;
-    private Sensor mProxSensor;
-    private boolean mRequireActiveMusic;
-
+    private volatile SensorManager mSensorManager;
+    private volatile Sensor mProxSensor;
+    private ContextSignalCache mSignalCache;
+    private int mConfigStoreVersion;
+    private final int[] mSlotGenerations = new int[ConfigStore.SLOT_COUNT];
+    private boolean mReady;
+    private boolean mInitFailed;
+    private List<WakeGesture> mBufferedGestures = new ArrayList<WakeGesture>(MAX_BUFFERED_GESTURES);
+    private final long[] mBufferedKernelTimesUs = new long[MAX_BUFFERED_GESTURES];
+    private long mSyncInitTimeNs;
+    private final GestureEventLog mEventLog = new GestureEventLog(EVENT_LOG_CAPACITY);
+    private GestureHistory mHistory;
+    private GesturePublisher mPublisher;
+    private TorchController mTorchController;
+
+    /**
+     * Only minimum is done synchronously as we are called from PhoneWindowManager.init()
+     * which is on critical boot path. Rest of initialization including gesture backend
+     * detection is done in background and gestures arriving before it is finished are buffered.
+     */
     public WakeGestureHandler(Object phoneWindowManager) {
+        final long startNs = System.nanoTime();
         mPhoneWindowManager = phoneWindowManager;
         mContext = (Context) XposedHelpers.getObjectField(mPhoneWindowManager, "mContext");
-        mPrefs = new XSharedPreferences(ModWakeGestures.PACKAGE_NAME);
-        mPrefs.makeWorldReadable();
         mPm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
         mHandler = new Handler();
 
+        new Thread(mInitRunnable, "WakeGestureInit").start();
+        mSyncInitTimeNs = System.nanoTime() - startNs;
+        StartupTrace.record(StartupTrace.EVENT_HANDLER_INIT_SYNC, mSyncInitTimeNs);
+    }
+
+    private Runnable mInitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long startNs = System.nanoTime();
+            if (!WakeGestureProcessor.supportsWakeGestures()) {
+                ModWakeGestures.log("Device does not support wake gestures");
+                return;
+            }
+            boolean success = false;
+            try {
+                initAsync();
+                success = true;
+            } catch (Throwable t) {
+                XposedBridge.log(t);
+            }
+            final long asyncInitTimeNs = System.nanoTime() - startNs;
+            StartupTrace.record(StartupTrace.EVENT_HANDLER_INIT_ASYNC, asyncInitTimeNs);
+            final boolean initialized = success;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onInitFinished(asyncInitTimeNs, initialized);
+                }
+            });
+        }
+    };
+
+    private void initAsync() {
+        // processor delivers events via looper of handler so gestures get buffered until ready
+        initWakeGestureProcessor();
+
+        mSignalCache = new ContextSignalCache(mContext, mPhoneWindowManager, mHandler);
+        mHistory = new GestureHistory();
+        mPublisher = new GesturePublisher(mContext);
+        mPublisher.start();
+
         try {
             mWgContext = mContext.createPackageContext(ModWakeGestures.PACKAGE_NAME, Context.CONTEXT_IGNORE_SECURITY);
         } catch (NameNotFoundException e) {
             ModWakeGestures.log("Error creating WG context: " + e.getMessage());
         }
+        mTorchController = new TorchController(mContext, mWgContext, mHandler);
 
+        // finishScreenTurningOn hook is installed only while keyguard dismissal is pending
         try {
-            mScreenOnUnhook = XposedHelpers.findAndHookMethod(mPhoneWindowManager.getClass(),
-                    "finishScreenTurningOn", CLASS_SCREEN_ON_LISTENER, mScreenOnHook);
+            mScreenOnMethod = XposedHelpers.findMethodExact(mPhoneWindowManager.getClass(),
+                    "finishScreenTurningOn", CLASS_SCREEN_ON_LISTENER);
         } catch (Throwable t) {
-            ModWakeGestures.log("Error hooking finishScreenTurningOn: " + t.getMessage());
+            ModWakeGestures.log("Error finding finishScreenTurningOn: " + t.getMessage());
         }
 
         initWakeGestures();
-        initWakeGestureProcessor();
+    }
+
+    private void onInitFinished(long asyncInitTimeNs, boolean success) {
+        if (!success) {
+            // partially initialized handler would crash on gestures so they are dropped for good
+            mInitFailed = true;
+            ModWakeGestures.log("Initialization failed; dropping " + mBufferedGestures.size() +
+                    " buffered gestures and ignoring further ones");
+            mBufferedGestures.clear();
+            return;
+        }
+
+        mReady = true;
+        ModWakeGestures.log("Initialized: PhoneWindowManager.init overhead=" + mSyncInitTimeNs / 1000 +
+                "us; background init=" + asyncInitTimeNs / 1000000 + "ms; buffered gestures=" +
+                mBufferedGestures.size());
+
+        for (int i = 0; i < mBufferedGestures.size(); i++) {
+            handleGesture(mBufferedGestures.get(i), mBufferedKernelTimesUs[i]);
+        }
+        mBufferedGestures.clear();
     }
 
     private void initWakeGestureProcessor() {
-        mWgp = WakeGestureProcessor.getInstance();
+        mWgp = WakeGestureProcessor.getInstance(mHandler.getLooper());
         mWgp.registerWakeGestureListener(this);
         mWgp.startProcessing();
     }
 
     private void initWakeGestures() {
-        mWakeGestures = new HashMap<WakeGesture, Intent>(5);
-        mWakeGestures.put(WakeGesture.SWEEP_RIGHT, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT, null)));
-        mWakeGestures.put(WakeGesture.SWEEP_LEFT, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT, null)));
-        mWakeGestures.put(WakeGesture.SWEEP_UP, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_UP, null)));
-        mWakeGestures.put(WakeGesture.SWEEP_DOWN, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN, null)));
-        mWakeGestures.put(WakeGesture.DOUBLETAP, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_DOUBLETAP, null)));
-
-        mDoubleWakeGestures = new HashMap<WakeGesture, Intent>(5);
-        mDoubleWakeGestures.put(WakeGesture.SWEEP_RIGHT, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT_DBL, null)));
-        mDoubleWakeGestures.put(WakeGesture.SWEEP_LEFT, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT_DBL, null)));
-        mDoubleWakeGestures.put(WakeGesture.SWEEP_UP, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_UP_DBL, null)));
-        mDoubleWakeGestures.put(WakeGesture.SWEEP_DOWN, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN_DBL, null)));
-        mDoubleWakeGestures.put(WakeGesture.DOUBLETAP, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_DOUBLETAP_DBL, null)));
-
-        mRequireActiveMusic = mPrefs.getBoolean(WakeGestureSettings.PREF_KEY_ACTIVE_MUSIC, false);
+        if (!reloadConfigStore()) {
+            // config store not written yet by settings app
+            loadLegacyPreferences();
+        }
 
-        if (ModWakeGestures.DEBUG) {
-            for (Entry<WakeGesture, Intent> item : mWakeGestures.entrySet()) {
-                ModWakeGestures.log(item.getKey().toString() + ": " + item.getValue());
-            }
-            ModWakeGestures.log("mRequireActiveMusic: " + mRequireActiveMusic);
+        IntentFilter intentFilter = new IntentFilter(WakeGestureSettings.ACTION_CONFIG_CHANGED);
+        intentFilter.addAction(Intent.ACTION_SHUTDOWN);
+        intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mBroadcastReceiver, intentFilter);
+
+        // required permission applies per registration so dump and query get their own
+        mContext.registerReceiver(mBroadcastReceiver, new IntentFilter(ACTION_DUMP_STATS),
+                android.Manifest.permission.DUMP, null);
+        mContext.registerReceiver(mBroadcastReceiver, new IntentFilter(GestureHistory.ACTION_QUERY),
+                GestureHistory.PERMISSION_QUERY, null);
+    }
+
+    /**
+     * Reloads configuration from config store. Only slots whose generation differs from
+     * already loaded one are decoded.
+     * @return false if config store is not available
+     */
+    private boolean reloadConfigStore() {
+        final ConfigStore store;
+        try {
+            store = ConfigStore.open(ConfigStore.getFile());
+        } catch (IOException e) {
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log("Config store not available: " + e.getMessage());
+            return false;
         }
 
-        setPocketModeEnabled(mPrefs.getBoolean(WakeGestureSettings.PREF_KEY_POCKET_MODE, false));
+        final WakeGestureConfig current = mConfig.get();
+        if (current != null && store.getVersion() == mConfigStoreVersion) {
+            return true;
+        }
+        if (store.getVersion() < mConfigStoreVersion) {
+            // store was recreated so its generations are unrelated to loaded ones
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log("Config store version went backwards");
+            Arrays.fill(mSlotGenerations, 0);
+        }
 
-        IntentFilter intentFilter = new IntentFilter(WakeGestureSettings.ACTION_WAKE_GESTURE_CHANGED);
-        intentFilter.addAction(WakeGestureSettings.ACTION_DOUBLE_WAKE_GESTURE_CHANGED);
-        intentFilter.addAction(WakeGestureSettings.ACTION_SETTINGS_CHANGED);
-        mContext.registerReceiver(mBroadcastReceiver, intentFilter);
+        WakeGestureConfig.Builder builder = (current == null ?
+                new WakeGestureConfig.Builder() : new WakeGestureConfig.Builder(current));
+        for (int slot = 0; slot < ConfigStore.SLOT_COUNT; slot++) {
+            final int generation = store.getSlotGeneration(slot);
+            if (generation == mSlotGenerations[slot]) continue;
+
+            final WakeGesture wg = ConfigStore.getSlotGesture(slot);
+            final boolean dbl = ConfigStore.isDoubleSlot(slot);
+            builder.setAction(wg, dbl, intentFromUri(store.getSlotUri(slot)));
+            builder.setRules(wg, dbl, GestureRules.compile(store.getSlotRules(slot)));
+            mSlotGenerations[slot] = generation;
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log("Config slot " + slot + " reloaded");
+        }
+        builder.setPocketModeEnabled(store.hasFlag(ConfigStore.FLAG_POCKET_MODE));
+        builder.setActiveMusicRequired(store.hasFlag(ConfigStore.FLAG_ACTIVE_MUSIC));
+        mConfigStoreVersion = store.getVersion();
+        publishConfig(builder.build());
+        return true;
+    }
+
+    private void loadLegacyPreferences() {
+        mPrefs = new XSharedPreferences(ModWakeGestures.PACKAGE_NAME);
+        mPrefs.makeWorldReadable();
+
+        WakeGestureConfig.Builder builder = new WakeGestureConfig.Builder();
+        loadWakeGesture(builder, WakeGesture.SWEEP_RIGHT, WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT, false);
+        loadWakeGesture(builder, WakeGesture.SWEEP_LEFT, WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT, false);
+        loadWakeGesture(builder, WakeGesture.SWEEP_UP, WakeGestureSettings.PREF_KEY_WG_SWEEP_UP, false);
+        loadWakeGesture(builder, WakeGesture.SWEEP_DOWN, WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN, false);
+        loadWakeGesture(builder, WakeGesture.DOUBLETAP, WakeGestureSettings.PREF_KEY_WG_DOUBLETAP, false);
+
+        loadWakeGesture(builder, WakeGesture.SWEEP_RIGHT, WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT_DBL, true);
+        loadWakeGesture(builder, WakeGesture.SWEEP_LEFT, WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT_DBL, true);
+        loadWakeGesture(builder, WakeGesture.SWEEP_UP, WakeGestureSettings.PREF_KEY_WG_SWEEP_UP_DBL, true);
+        loadWakeGesture(builder, WakeGesture.SWEEP_DOWN, WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN_DBL, true);
+        loadWakeGesture(builder, WakeGesture.DOUBLETAP, WakeGestureSettings.PREF_KEY_WG_DOUBLETAP_DBL, true);
+
+        builder.setActiveMusicRequired(mPrefs.getBoolean(WakeGestureSettings.PREF_KEY_ACTIVE_MUSIC, false));
+        builder.setPocketModeEnabled(mPrefs.getBoolean(WakeGestureSettings.PREF_KEY_POCKET_MODE, false));
+        publishConfig(builder.build());
+    }
+
+    private void loadWakeGesture(WakeGestureConfig.Builder builder, WakeGesture gesture,
+            String key, boolean dbl) {
+        builder.setAction(gesture, dbl, intentFromUri(mPrefs.getString(key, null)));
+        builder.setRules(gesture, dbl, GestureRules.compile(mPrefs.getString(
+                key + WakeGestureSettings.PREF_KEY_RULES_SUFFIX, null)));
+    }
+
+    /**
+     * Publishes new configuration snapshot. Initial snapshot is published from the init thread,
+     * later ones from the handler thread; being synchronized keeps publishers serialized while
+     * readers just grab current snapshot from atomic reference.
+     */
+    private synchronized void publishConfig(WakeGestureConfig config) {
+        final WakeGestureConfig prev = mConfig.getAndSet(config);
+        if (prev == null || prev.isPocketModeEnabled() != config.isPocketModeEnabled()) {
+            setPocketModeEnabled(config.isPocketModeEnabled());
+        }
+        if (ModWakeGestures.DEBUG) {
+            ModWakeGestures.log(config.toString());
+        }
     }
 
     private void setPocketModeEnabled(boolean enabled) {
@@ -154,6 +329,7 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
             mProxSensor = null;
             mSensorManager = null;
         }
+        mSignalCache.setProximityTrackingEnabled(enabled);
     }
 
     private Intent intentFromUri(String uri) {
@@ -169,29 +345,68 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
     }
 
     @Override
-    public void onWakeGesture(final WakeGesture gesture) {
+    public void onWakeGesture(WakeGesture gesture) {
+        // kernel time belongs to this event so it has to be captured before buffering
+        final long kernelTimeUs = mWgp.getLastEventTimeUs();
+        if (mInitFailed) return;
+        if (!mReady) {
+            if (mBufferedGestures.size() < MAX_BUFFERED_GESTURES) {
+                mBufferedKernelTimesUs[mBufferedGestures.size()] = kernelTimeUs;
+                mBufferedGestures.add(gesture);
+            }
+            return;
+        }
+
+        handleGesture(gesture, kernelTimeUs);
+    }
+
+    private void handleGesture(final WakeGesture gesture, final long kernelTimeUs) {
+        final long receivedNs = System.nanoTime();
+        // whole gesture is handled with snapshot current at the time it was received
+        final WakeGestureConfig config = mConfig.get();
+        final int dispatchUs = (int) (System.currentTimeMillis() * 1000 - kernelTimeUs);
+
         if (ModWakeGestures.DEBUG) {
             ModWakeGestures.log("onWakeGesture: " + gesture);
+            ModWakeGestures.log(mSignalCache.toString());
         }
 
-        if (mSensorManager != null && mProxSensor != null) {
-            mSensorManager.registerListener(new SensorEventListener() {
+        final SensorManager sensorManager = mSensorManager;
+        final Sensor proxSensor = mProxSensor;
+        if (sensorManager != null && proxSensor != null) {
+            // use cached proximity state if available and fall back to one-shot sample otherwise
+            final int proximity = mSignalCache.getProximity();
+            // keep sample fresh for gesture that may follow shortly (e.g. double gesture)
+            mSignalCache.sampleProximity();
+            if (proximity == ContextSignalCache.PROXIMITY_NEAR) {
+                if (ModWakeGestures.DEBUG) ModWakeGestures.log("Screen covered; ignoring gesture");
+                recordGesture(kernelTimeUs, gesture, GestureEventLog.DECISION_POCKET_REJECTED,
+                        GestureEventLog.ACTION_NONE, dispatchUs, receivedNs, System.nanoTime());
+                return;
+            } else if (proximity == ContextSignalCache.PROXIMITY_FAR) {
+                processGesture(config, gesture, kernelTimeUs, dispatchUs, receivedNs);
+                return;
+            }
+            sensorManager.registerListener(new SensorEventListener() {
                 @Override
                 public void onSensorChanged(SensorEvent event) {
                     try {
                         final boolean screenCovered = 
-                                event.values[0] < (mProxSensor.getMaximumRange() * 0.1f); 
+                                event.values[0] < (proxSensor.getMaximumRange() * 0.1f); 
                         if (ModWakeGestures.DEBUG) ModWakeGestures.log(
                                 "mProxSensorEventListener: " + event.values[0] +
                                 "; screenCovered=" + screenCovered);
                         if (!screenCovered) {
-                            processGesture(gesture);
+                            processGesture(config, gesture, kernelTimeUs, dispatchUs, receivedNs);
+                        } else {
+                            recordGesture(kernelTimeUs, gesture, GestureEventLog.DECISION_POCKET_REJECTED,
+                                    GestureEventLog.ACTION_NONE, dispatchUs, receivedNs, System.nanoTime());
                         }
                     } catch (Throwable t) {
                         XposedBridge.log(t);
                     } finally {
                         try { 
-                            mSensorManager.unregisterListener(this, mProxSensor); 
+                            sensorManager.unregisterListener(this, proxSensor); 
                         } catch (Throwable t) {
                             // should never happen
                         }
@@ -199,32 +414,101 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
                 }
                 @Override
                 public void onAccuracyChanged(Sensor sensor, int accuracy) { }
-            }, mProxSensor, SensorManager.SENSOR_DELAY_FASTEST);
+            }, proxSensor, SensorManager.SENSOR_DELAY_FASTEST);
         } else {
-            processGesture(gesture);
+            processGesture(config, gesture, kernelTimeUs, dispatchUs, receivedNs);
         }
     }
 
-    private void processGesture(WakeGesture gesture) {
+    private void processGesture(WakeGestureConfig config, WakeGesture gesture, long kernelTimeUs,
+            int dispatchUs, long receivedNs) {
         mHandler.removeCallbacks(mPendingGestureRunnable);
         final WakeGesture prevGesture = mPendingGesture;
         mPendingGesture = null;
+        mPendingConfig = null;
         releasePartialWakeLock();
 
         if (gesture == prevGesture) {
-            handleIntent(mDoubleWakeGestures.get(gesture));
+            executeGesture(config, gesture, true, kernelTimeUs, dispatchUs, receivedNs);
         } else {
-            if (mDoubleWakeGestures.get(gesture) != null) {
+            if (config.isConfigured(gesture, true)) {
                 mPendingGesture = gesture;
+                mPendingConfig = config;
+                mPendingKernelTimeUs = kernelTimeUs;
+                mPendingDispatchUs = dispatchUs;
+                mPendingReceivedNs = receivedNs;
                 mWakeLock = mPm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, ModWakeGestures.TAG);
                 mWakeLock.acquire();
                 mHandler.postDelayed(mPendingGestureRunnable, 1000);
+                recordGesture(kernelTimeUs, gesture, GestureEventLog.DECISION_DOUBLE_PENDING,
+                        GestureEventLog.ACTION_NONE, dispatchUs, receivedNs, System.nanoTime());
             } else {
-                handleIntent(mWakeGestures.get(gesture));
+                executeGesture(config, gesture, false, kernelTimeUs, dispatchUs, receivedNs);
             }
         }
     }
 
+    private void executeGesture(WakeGestureConfig config, WakeGesture gesture, boolean dbl,
+            long kernelTimeUs, int dispatchUs, long receivedNs) {
+        final Intent intent = resolveAction(config, gesture, dbl);
+        final long decidedNs = System.nanoTime();
+        final int action = handleIntent(config, intent);
+        final int decision = (action == GestureEventLog.ACTION_NONE ? GestureEventLog.DECISION_NO_ACTION :
+            dbl ? GestureEventLog.DECISION_EXECUTED_DOUBLE : GestureEventLog.DECISION_EXECUTED);
+        recordGesture(kernelTimeUs, gesture, decision, action, dispatchUs, receivedNs, decidedNs);
+    }
+
+    /**
+     * Records gesture into event log. Action latency is measured from decidedNs till now.
+     */
+    private void recordGesture(long kernelTimeUs, WakeGesture gesture, int decision, int action,
+            int dispatchUs, long receivedNs, long decidedNs) {
+        final int decisionUs = (int) ((decidedNs - receivedNs) / 1000);
+        final int actionUs = (int) ((System.nanoTime() - decidedNs) / 1000);
+        mEventLog.record(kernelTimeUs, gesture.ordinal(), decision, action, dispatchUs,
+                decisionUs, actionUs);
+        mHistory.add(gesture.ordinal(), decision, action, dispatchUs + decisionUs + actionUs);
+        mPublisher.publish(kernelTimeUs, gesture.ordinal(), decision, action);
+    }
+
+    private Intent resolveAction(WakeGestureConfig config, WakeGesture gesture, boolean dbl) {
+        final Intent intent = config.getAction(gesture, dbl);
+        final GestureRules rules = config.getRules(gesture, dbl);
+        if (rules == null) return intent;
+
+        final long startNs = ModWakeGestures.DEBUG ? System.nanoTime() : 0;
+        final int required = rules.getRequiredSignals();
+        int signals = 0;
+        if ((required & GestureRules.SIGNAL_MUSIC_ACTIVE) != 0 && mSignalCache.isMusicActive()) {
+            signals |= GestureRules.SIGNAL_MUSIC_ACTIVE;
+        }
+        if ((required & GestureRules.SIGNAL_CHARGING) != 0 && mSignalCache.isCharging()) {
+            signals |= GestureRules.SIGNAL_CHARGING;
+        }
+        if ((required & GestureRules.SIGNAL_KEYGUARD) != 0 && mSignalCache.isKeyguardShowing()) {
+            signals |= GestureRules.SIGNAL_KEYGUARD;
+        }
+        final int result = rules.evaluate(signals, rules.requiresTime() ? getMinuteOfDay() : 0);
+        if (ModWakeGestures.DEBUG) {
+            ModWakeGestures.log("Rules for " + gesture + (dbl ? " (double)" : "") + " evaluated to " +
+                    result + " in " + (System.nanoTime() - startNs) / 1000 + "us");
+        }
+
+        if (result == GestureRules.RESULT_NONE) {
+            return null;
+        } else if (result >= 0) {
+            return rules.getAction(result);
+        } else {
+            return intent;
+        }
+    }
+
+    private static int getMinuteOfDay() {
+        long now = System.currentTimeMillis();
+        now += TimeZone.getDefault().getOffset(now);
+        return (int) ((now / 60000) % 1440);
+    }
+
     @Override
     public void onProcessingException(Exception e) {
         ModWakeGestures.log("onProcessingException: " + e.getMessage());
@@ -235,8 +519,10 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
         public void run() {
             releasePartialWakeLock();
             if (mPendingGesture != null) {
-                handleIntent(mWakeGestures.get(mPendingGesture));
+                executeGesture(mPendingConfig, mPendingGesture, false,
+                        mPendingKernelTimeUs, mPendingDispatchUs, mPendingReceivedNs);
                 mPendingGesture = null;
+                mPendingConfig = null;
             }
         }
     };
@@ -248,26 +534,33 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
         }
     }
 
+    /**
+     * @return type of action that was executed as one of GestureEventLog.ACTION_* values
+     */
     @SuppressWarnings("deprecation")
-    private void handleIntent(Intent intent) {
-        if (intent == null || !intent.hasExtra("mode")) return;
+    private int handleIntent(WakeGestureConfig config, Intent intent) {
+        if (intent == null || !intent.hasExtra("mode")) return GestureEventLog.ACTION_NONE;
 
         boolean keepScreenOff = intent.getBooleanExtra(AppPickerPreference.EXTRA_KEEP_SCREEN_OFF, false);
-        mWakeLock = mPm.newWakeLock(keepScreenOff ? PowerManager.PARTIAL_WAKE_LOCK : 
+        // local wake lock as macro steps are handled one by one
+        final WakeLock wakeLock = mPm.newWakeLock(keepScreenOff ? PowerManager.PARTIAL_WAKE_LOCK : 
             PowerManager.SCREEN_BRIGHT_WAKE_LOCK |
                 PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE,
                 ModWakeGestures.TAG);
-        mWakeLock.acquire();
+        wakeLock.acquire();
 
+        int action = GestureEventLog.ACTION_NONE;
         int mode = intent.getIntExtra("mode", AppPickerPreference.MODE_APP);
         if (mode == AppPickerPreference.MODE_APP || mode == AppPickerPreference.MODE_SHORTCUT) {
             startActivity(intent);
+            action = (mode == AppPickerPreference.MODE_APP ?
+                    GestureEventLog.ACTION_APP : GestureEventLog.ACTION_SHORTCUT);
         } else if (mode == AppPickerPreference.MODE_ACTION) {
-            executeAction(intent);
+            action = executeAction(config, intent);
         }
 
-        mWakeLock.release();
-        mWakeLock = null;
+        wakeLock.release();
+        return action;
     }
 
     private void startActivity(Intent intent) {
@@ -279,6 +572,8 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
         } catch (Throwable t) { }
 
         try {
+            // configuration snapshot is shared so never modify its intents
+            intent = new Intent(intent);
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             Constructor<?> uhConst = XposedHelpers.findConstructorExact(UserHandle.class, int.class);
             UserHandle uh = (UserHandle) uhConst.newInstance(-2);
@@ -288,23 +583,146 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
         }
     }
 
-    private void executeAction(Intent intent) {
+    private int executeAction(WakeGestureConfig config, Intent intent) {
         String action = intent.getAction();
         if (action.equals(AppPickerPreference.ACTION_DISMISS_KEYGUARD)) {
-            if (mScreenOnUnhook != null) {
+            if (installScreenOnHook()) {
                 mDismissKeyguardOnNextScreenOn = true;
             } else {
                 dismissKeyguard();
             }
+            return GestureEventLog.ACTION_UNLOCK;
         } else if (action.equals(AppPickerPreference.ACTION_TOGGLE_TORCH)) {
             toggleTorch();
+            return GestureEventLog.ACTION_TORCH;
         } else if (action.equals(AppPickerPreference.ACTION_MEDIA_CONTROL)) {
-            if (!mRequireActiveMusic || isMusicActive()) {
+            if (!config.isActiveMusicRequired() || mSignalCache.isMusicActive()) {
                 sendMediaButtonEvent(intent.getIntExtra(AppPickerPreference.EXTRA_MC_KEYCODE, 0));
+                return GestureEventLog.ACTION_MEDIA;
             }
         } else if (action.equals(AppPickerPreference.ACTION_SCREEN_ON)) {
             // do nothing as wake lock already did it for us
+            return GestureEventLog.ACTION_SCREEN_ON;
+        } else if (action.equals(AppPickerPreference.ACTION_MACRO)) {
+            executeMacro(config, intent);
+            return GestureEventLog.ACTION_MACRO;
+        }
+        return GestureEventLog.ACTION_NONE;
+    }
+
+    private void executeMacro(final WakeGestureConfig config, Intent intent) {
+        // macros are parsed when config snapshot is built
+        ActionMacro macro = config.getMacro(intent);
+        if (macro == null) return;
+
+        macro.execute(mHandlerExecutor, mMacroExecutor, new ActionMacro.StepExecutor() {
+            @Override
+            public void executeStep(Intent step) {
+                // nested macros are not supported
+                if (AppPickerPreference.ACTION_MACRO.equals(step.getAction())) return;
+                handleIntent(config, step);
+            }
+        }, mMacroStats);
+    }
+
+    // dependent steps run on handler thread like single actions do
+    private Executor mHandlerExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
         }
+    };
+
+    // independent steps run concurrently on small bounded pool
+    private final ThreadPoolExecutor mMacroExecutor = createMacroExecutor();
+
+    private static ThreadPoolExecutor createMacroExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MACRO_THREADS, MACRO_THREADS,
+                MACRO_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "WakeGestureMacro");
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Latencies of finished macro runs; reported by stats dump
+     */
+    private static class MacroStats implements ActionMacro.FinishListener {
+        private int mRuns;
+        private long mTotalNs;
+        private long mMaxNs;
+        private String mLastRun;
+
+        @Override
+        public void onMacroFinished(ActionMacro macro, long totalNs, long[] stepLatencyNs) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(totalNs / 1000000).append("ms;");
+            for (int i = 0; i < stepLatencyNs.length; i++) {
+                sb.append(" step").append(i).append(macro.isIndependent(i) ? "(p)=" : "(s)=")
+                    .append(stepLatencyNs[i] / 1000000).append("ms");
+            }
+            final String run = sb.toString();
+            synchronized (this) {
+                mRuns++;
+                mTotalNs += totalNs;
+                mMaxNs = Math.max(mMaxNs, totalNs);
+                mLastRun = run;
+            }
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log("Macro finished in " + run);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Macros: runs=" + mRuns + "; avg=" + (mRuns == 0 ? 0 : mTotalNs / mRuns / 1000000) +
+                    "ms; max=" + mMaxNs / 1000000 + "ms; last=" + mLastRun;
+        }
+    }
+
+    private final MacroStats mMacroStats = new MacroStats();
+
+    private synchronized boolean installScreenOnHook() {
+        if (mScreenOnMethod == null) return false;
+        if (mScreenOnUnhook != null) return true;
+
+        try {
+            final long startNs = System.nanoTime();
+            mScreenOnUnhook = XposedBridge.hookMethod(mScreenOnMethod, mScreenOnHook);
+            final long timeNs = System.nanoTime() - startNs;
+            mScreenOnHookInstalls++;
+            mScreenOnHookInstallTimeNs += timeNs;
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log("finishScreenTurningOn hook installed in " +
+                    timeNs / 1000 + "us");
+            return true;
+        } catch (Throwable t) {
+            ModWakeGestures.log("Error hooking finishScreenTurningOn: " + t.getMessage());
+            mScreenOnMethod = null;
+            return false;
+        }
+    }
+
+    private synchronized void uninstallScreenOnHook() {
+        if (mScreenOnUnhook != null) {
+            final long startNs = System.nanoTime();
+            mScreenOnUnhook.unhook();
+            mScreenOnUnhook = null;
+            mScreenOnHookUninstalls++;
+            mScreenOnHookUninstallTimeNs += System.nanoTime() - startNs;
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log("finishScreenTurningOn hook removed");
+        }
+    }
+
+    private synchronized String getScreenOnHookStats() {
+        return "Screen-on hook: installs=" + mScreenOnHookInstalls + " (avg " +
+                (mScreenOnHookInstalls == 0 ? 0 : mScreenOnHookInstallTimeNs / mScreenOnHookInstalls / 1000) +
+                "us); uninstalls=" + mScreenOnHookUninstalls + " (avg " +
+                (mScreenOnHookUninstalls == 0 ? 0 : mScreenOnHookUninstallTimeNs / mScreenOnHookUninstalls / 1000) +
+                "us); calls=" + mScreenOnHookCalls + " (total " + mScreenOnHookTimeNs / 1000 +
+                "us); screen-ons=" + mScreenOns;
     }
 
     private void dismissKeyguard() {
@@ -317,11 +735,7 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
 
     private void toggleTorch() {
         try {
-            Intent intent = new Intent(mWgContext, TorchService.class);
-            intent.setAction(TorchService.ACTION_TOGGLE_TORCH);
-            Constructor<?> uhConst = XposedHelpers.findConstructorExact(UserHandle.class, int.class);
-            UserHandle uh = (UserHandle) uhConst.newInstance(-2);
-            XposedHelpers.callMethod(mContext, "startServiceAsUser", intent, uh);
+            mTorchController.toggle();
         } catch (Throwable t) {
             ModWakeGestures.log("Error toggling Torch: " + t.getMessage());
         }
@@ -359,59 +773,67 @@ public class WakeGestureHandler implements WakeGestureProcessor.WakeGestureListe
         }
     }
 
-    private boolean isMusicActive() {
-        try {
-            return (Boolean) XposedHelpers.callMethod(mPhoneWindowManager, "isMusicActive");
-        } catch (Throwable t) {
-            XposedBridge.log(t);
-            return false;
-        }
-    }
-
     private XC_MethodHook mScreenOnHook = new XC_MethodHook() {
         @Override
         protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+            final long startNs = System.nanoTime();
             if (mDismissKeyguardOnNextScreenOn) {
                 mDismissKeyguardOnNextScreenOn = false;
+                uninstallScreenOnHook();
                 dismissKeyguard();
             }
+            synchronized (WakeGestureHandler.this) {
+                mScreenOnHookCalls++;
+                mScreenOnHookTimeNs += System.nanoTime() - startNs;
+            }
+            if (ModWakeGestures.DEBUG) ModWakeGestures.log(getScreenOnHookStats());
         }
     };
 
+    private void dumpEventLog() {
+        // formatting is done off the main thread
+        new Thread("WakeGestureDump") {
+            @Override
+            public void run() {
+                try {
+                    mEventLog.dump(new File(EVENT_LOG_DUMP_FILE));
+                    ModWakeGestures.log("Event log dumped to " + EVENT_LOG_DUMP_FILE);
+                } catch (IOException e) {
+                    ModWakeGestures.log("Error dumping event log: " + e.getMessage());
+                }
+            }
+        }.start();
+    }
+
     private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if ((action.equals(WakeGestureSettings.ACTION_WAKE_GESTURE_CHANGED) ||
-                    action.equals(WakeGestureSettings.ACTION_DOUBLE_WAKE_GESTURE_CHANGED)) &&
-                    intent.hasExtra(WakeGestureSettings.EXTRA_WAKE_GESTURE)) {
-                try {
-                    WakeGesture wg = WakeGesture.valueOf(intent.getStringExtra(
-                            WakeGestureSettings.EXTRA_WAKE_GESTURE));
-                    if (wg != null) {
-                        String uri = intent.getStringExtra(WakeGestureSettings.EXTRA_INTENT_URI);
-                        if (action.equals(WakeGestureSettings.ACTION_WAKE_GESTURE_CHANGED)) {
-                            mWakeGestures.put(wg, intentFromUri(uri));
-                        } else {
-                            mDoubleWakeGestures.put(wg, intentFromUri(uri));
-                        }
-                        if (ModWakeGestures.DEBUG) {
-                            ModWakeGestures.log(wg.toString() + ": " + uri);
-                        }
-                    }
-                } catch (Exception e) { 
-                    ModWakeGestures.log("ACTION_WAKE_GESTURE_CHANGED error: " + e.getMessage());
+            if (intent.getAction().equals(WakeGestureSettings.ACTION_CONFIG_CHANGED)) {
+                if (ModWakeGestures.DEBUG) ModWakeGestures.log("ACTION_CONFIG_CHANGED: version=" +
+                        intent.getIntExtra(WakeGestureSettings.EXTRA_CONFIG_VERSION, -1));
+                if (!reloadConfigStore()) {
+                    ModWakeGestures.log("ACTION_CONFIG_CHANGED: unable to reload config store");
                 }
-            } else if (action.equals(WakeGestureSettings.ACTION_SETTINGS_CHANGED)) {
-                if (intent.hasExtra(WakeGestureSettings.EXTRA_POCKET_MODE)) {
-                    setPocketModeEnabled(intent.getBooleanExtra(WakeGestureSettings.EXTRA_POCKET_MODE, false));
-                }
-                if (intent.hasExtra(WakeGestureSettings.EXTRA_ACTIVE_MUSIC)) {
-                    mRequireActiveMusic = intent.getBooleanExtra(WakeGestureSettings.EXTRA_ACTIVE_MUSIC, false);
-                    if (ModWakeGestures.DEBUG) {
-                        ModWakeGestures.log("mRequireActiveMusic: " + mRequireActiveMusic);
-                    }
+            } else if (intent.getAction().equals(ACTION_DUMP_STATS)) {
+                ModWakeGestures.log(StartupTrace.dump());
+                ModWakeGestures.log(mSignalCache.toString());
+                ModWakeGestures.log(mPublisher.toString());
+                ModWakeGestures.log(mTorchController.toString());
+                ModWakeGestures.log(mTorchController.getServiceStats());
+                ModWakeGestures.log(mMacroStats.toString());
+                ModWakeGestures.log(getScreenOnHookStats());
+                dumpEventLog();
+            } else if (intent.getAction().equals(GestureHistory.ACTION_QUERY)) {
+                mHistory.query(this, intent);
+            } else if (intent.getAction().equals(Intent.ACTION_SHUTDOWN)) {
+                mHistory.flush();
+            } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
+                synchronized (WakeGestureHandler.this) {
+                    mScreenOns++;
                 }
+                mWgp.setScreenOn(true);
+            } else if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
+                mWgp.setScreenOn(false);
             }
         }
     };
@@ -15,27 +15,32 @@
 
 package com.ceco.wakegestures;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
 /**
- * Wake Gesture Processor for ElementalX kernel wake gestures
+ * Wake Gesture Processor for kernel wake gestures
+ * 
+ * Kernel specifics are handled by GestureSource backends (ElementalX, generic evdev).
+ * Input devices of all supported backends are read by single thread waiting on all
+ * of them at once.
  * 
  * 1) create/get existing instance using getInstance() static method.
  * Processor must be instantiated within process that has permission to access input device file.
- * E.g. PhoneWindowManager init() hooked in zygote init can be used.
+ * E.g. PhoneWindowManager init() hooked in zygote init can be used. Backend detection touches
+ * sysfs and loads shape templates so it should not be done on critical boot path.
  * 
  * 2) register WakeGestureListener that will receive Wake Gesture events as well as error messages
  * 
@@ -47,18 +52,18 @@ public class WakeGestureProcessor {
     private static final String TAG = "WakeGestureProcessor";
     private static final boolean DEBUG = false;
 
-    private static final String CONFIG_PATH_WG = "/sys/android_touch/wake_gestures";
-    private static final String CONFIG_PATH_SWEEP = "/sys/android_touch/sweep2wake";
-    private static final String CONFIG_PATH_DT = "/sys/android_touch/doubletap2wake";
-    private static final String CONFIG_WG_DEVICE_NAME = "wake_gesture";
-    private static final int EV_TYPE = 2; // EV_REL event type
-    private static final int EV_CODE = 11; // Wake gesture event
+    // struct input_event size depends on size of struct timeval of this process
+    private static final boolean IS_64BIT = System.getProperty("os.arch", "").contains("64");
+    private static final int EVENT_SIZE = IS_64BIT ? 24 : 16;
+    private static final int READ_BUFFER_EVENTS = 64;
+    private static final int MAX_SOURCES = 16;
 
     private static final int MSG_EVENT_RECEIVED = 1;
     private static final int MSG_PROCESSING_ERROR = 2;
 
     private static Object sLock = new Object();
     private static WakeGestureProcessor sInstance;
+    private static GestureSource[] sSources;
 
     /**
      * Enum representing all available wake gestures
@@ -87,19 +92,17 @@ public class WakeGestureProcessor {
             }
         }
 
+        public int getBitValue() {
+            return mBitValue;
+        }
+
         public boolean isEnabled() {
             if (mBitValue == 0) return false;
 
-            try {
-                File f = new File(mBitValue == 16 ? CONFIG_PATH_DT : CONFIG_PATH_SWEEP);
-                if (!f.exists()) return false;
-                int value = readFileSingleLineAsInt(f);
-                return (mBitValue == 16 ? value != 0 : 
-                    (value & mBitValue) == mBitValue);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+            for (GestureSource source : getSources()) {
+                if (source.isGestureEnabled(this)) return true;
             }
+            return false;
         }
     };
 
@@ -120,41 +123,71 @@ public class WakeGestureProcessor {
         void onProcessingException(Exception e);
     }
 
+    private final GestureSource[] mSources;
+    private final Handler mHandler;
     private InputEventThread mInputEventThread;
     private List<WakeGestureListener> mListeners;
+    private volatile long mLastEventTimeUs;
+    private volatile int mLastEventSource;
+    private int mWakeups;
 
     /**
      * Creates or gets existing instance of WakeGestureProcessor
+     * @param looper looper events are delivered on; used only when instance is created
      * @return WakeGestureProcessor instance
      */
-    public static WakeGestureProcessor getInstance() {
+    public static WakeGestureProcessor getInstance(Looper looper) {
         synchronized (sLock) {
             if (sInstance == null) {
-                sInstance = new WakeGestureProcessor();
+                sInstance = new WakeGestureProcessor(getSources(), looper);
             }
         }
         return sInstance;
     }
 
-    private WakeGestureProcessor() {
-        mInputEventThread = new InputEventThread();
+    /**
+     * Creates processor for given backends; getInstance() should be used for detected backends
+     * @param sources backends to read gestures from
+     * @param looper looper events are delivered on
+     */
+    WakeGestureProcessor(GestureSource[] sources, Looper looper) {
+        if (sources.length > MAX_SOURCES)
+            throw new IllegalArgumentException("Too many gesture sources");
+        mSources = sources;
+        mHandler = new EventHandler(looper);
+        mInputEventThread = new InputEventThread(mSources);
         mListeners = new ArrayList<WakeGestureListener>();
     }
 
+    /**
+     * Gets all gesture backends supported by kernel. Detection is done only once.
+     * @return backends, empty if kernel does not support wake gestures
+     */
+    public static GestureSource[] getSources() {
+        synchronized (sLock) {
+            if (sSources == null) {
+                sSources = GestureSource.detectAll(new File("/"));
+                if (DEBUG) Log.d(TAG, "Detected gesture sources: " + sSources.length);
+            }
+            return sSources;
+        }
+    }
+
+    /**
+     * Gets primary gesture backend
+     * @return backend or null if kernel does not support wake gestures
+     */
+    public static GestureSource getSource() {
+        GestureSource[] sources = getSources();
+        return (sources.length > 0 ? sources[0] : null);
+    }
+
     /**
      * Checks if device supports wake gestures
      * @return true if device supports wake gestures
      */
     public static boolean supportsWakeGestures() {
-        try {
-            File f = new File(CONFIG_PATH_WG);
-            if (!f.exists()) return false;
-            int value = readFileSingleLineAsInt(f);
-            return (value == 1);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
-        }
+        return (getSource() != null);
     }
 
     /**
@@ -163,7 +196,7 @@ public class WakeGestureProcessor {
      * @throws IllegalStateException in case processing could not be started because it is already running
      */
     public synchronized void startProcessing() {
-        if (!supportsWakeGestures())
+        if (mSources.length == 0)
             throw new UnsupportedOperationException("Device does not support wake gestures");
 
         if (!mInputEventThread.isAlive()) {
@@ -175,6 +208,36 @@ public class WakeGestureProcessor {
         }
     }
 
+    /**
+     * Gets kernel timestamp of last delivered wake gesture event.
+     * Valid when called from within WakeGestureListener.onWakeGesture
+     * @return event timestamp in microseconds (CLOCK_REALTIME based)
+     */
+    public long getLastEventTimeUs() {
+        return mLastEventTimeUs;
+    }
+
+    /**
+     * Gets backend that delivered last wake gesture event.
+     * Valid when called from within WakeGestureListener.onWakeGesture
+     * @return backend
+     */
+    public GestureSource getLastEventSource() {
+        return mSources[mLastEventSource];
+    }
+
+    /**
+     * Notifies gesture backends about screen state change
+     * @param screenOn true if screen is on
+     */
+    public void setScreenOn(boolean screenOn) {
+        for (GestureSource source : mSources) {
+            source.onScreenStateChanged(screenOn);
+        }
+        // let input thread add or remove devices of sources that became (in)active
+        mInputEventThread.wakeup();
+    }
+
     /**
      * Registers listener that will receive Wake Gestures and error messages
      * @param listener that implements WakeGestureListener interface
@@ -221,100 +284,246 @@ public class WakeGestureProcessor {
         }
     }
 
-    private Handler mHandler = new Handler() {
+    private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_EVENT_RECEIVED:
-                    EventData data = (EventData) msg.obj;
+                    // arg1: usec << 8 | source index << 4 | gesture ordinal; arg2: sec
+                    final WakeGesture gesture = WakeGesture.values()[msg.arg1 & 0xF];
+                    mLastEventSource = (msg.arg1 >>> 4) & 0xF;
+                    mLastEventTimeUs = (msg.arg2 & 0xFFFFFFFFL) * 1000000L + (msg.arg1 >>> 8);
                     if (DEBUG) {
-                        Log.d(TAG, "MSG_EVENT_RECEIVED: sec=" + data.timeSec +
-                            "; usec=" + data.timeUsec + "; type=" + data.type +
-                            "; code=" + data.code + "; value=" + data.value);
-                    }
-                    if (data.type == EV_TYPE && data.code == EV_CODE) {
-                        notifyWakeGestureListeners(WakeGesture.createFromId(data.value));
+                        Log.d(TAG, "MSG_EVENT_RECEIVED: gesture=" + gesture +
+                            "; source=" + mSources[mLastEventSource] +
+                            "; timeUs=" + mLastEventTimeUs + "; wakeups=" + mWakeups);
                     }
+                    notifyWakeGestureListeners(gesture);
                     break;
                 case MSG_PROCESSING_ERROR:
                     notifyWakeGestureListeners((Exception) msg.obj);
                     break;
             }
         }
-    };
+    }
 
+    /**
+     * Reads input devices of given sources. Single thread waits on all devices at once
+     * using poll. In case poll is not available, thread is started for each additional source.
+     * Devices of inactive sources are removed from poll set and events queued while they were
+     * inactive are discarded once they become active again.
+     */
     private class InputEventThread extends Thread {
+        private final GestureSource[] mThreadSources;
+        private volatile InputPoller mPoller;
+        // readers without poll wait on it while their source is inactive
+        private final Object mActiveLock = new Object();
+
+        InputEventThread(GestureSource[] sources) {
+            mThreadSources = sources;
+        }
+
         @Override
         public void run() {
             if (DEBUG) Log.d(TAG, "Thread starting");
 
-            BufferedInputStream inputStream = null;
-            final byte[] event = new byte[16];
+            final int count = mThreadSources.length;
+            final FileInputStream[] inputStreams = new FileInputStream[count];
+            // preallocated buffer decoded in place so that no garbage is produced per event
+            final byte[] events = new byte[READ_BUFFER_EVENTS * EVENT_SIZE];
+            final ByteBuffer buf = ByteBuffer.wrap(events).order(ByteOrder.LITTLE_ENDIAN);
 
             try {
-                File f = new File(getInputDevicePath());
-                inputStream = new BufferedInputStream(new FileInputStream(f));
+                for (int i = 0; i < count; i++) {
+                    File f = mThreadSources[i].getInputDevice();
+                    if (DEBUG) Log.d(TAG, "Found wake gesture input device as: " + f);
+                    inputStreams[i] = new FileInputStream(f);
+                }
+
+                FileDescriptor[] fds = new FileDescriptor[count];
+                for (int i = 0; i < count; i++) {
+                    fds[i] = inputStreams[i].getFD();
+                }
+                final InputPoller poller = InputPoller.create(fds, -1);
+                if (poller == null && count > 1) {
+                    startFallbackThreads(inputStreams);
+                }
+                mPoller = poller;
+                // all devices are in poll set initially
+                final boolean[] enabled = new boolean[count];
+                Arrays.fill(enabled, true);
+                final boolean[] failed = new boolean[count];
+                int failedCount = 0;
+                long activeSinceUs = 0;
 
                 while (!isInterrupted()) {
-                    if (inputStream.read(event) > 0) {
-                        sendEventMessage(event);
+                    if (poller == null) {
+                        activeSinceUs = awaitActive(0, activeSinceUs);
+                        mWakeups++;
+                        if (!readEvents(inputStreams[0], events, buf, 0, activeSinceUs)) break;
+                        continue;
+                    }
+
+                    updatePollSet(poller, inputStreams, events, enabled, failed);
+                    poller.poll();
+                    mWakeups++;
+                    for (int i = 0; i < count; i++) {
+                        if (!enabled[i]) continue;
+                        if (poller.isReadable(i)) {
+                            if (!readEvents(inputStreams[i], events, buf, i, 0)) return;
+                        } else if (poller.hasError(i)) {
+                            // broken device must not take down the others
+                            poller.setEnabled(i, false);
+                            enabled[i] = false;
+                            failed[i] = true;
+                            if (++failedCount == count) {
+                                throw new IOException("Error polling all gesture sources");
+                            }
+                            sendExceptionMessage(new IOException("Error polling " +
+                                    mThreadSources[i] + "; source disabled"));
+                        }
                     }
                 }
 
                 if (DEBUG) Log.d(TAG, "Thread finishing");
+            } catch (InterruptedException e) {
+                // stopped
             } catch (Exception e) {
                 sendExceptionMessage(e);
             } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException e) { }
-                    inputStream = null;
+                for (int i = 0; i < count; i++) {
+                    if (inputStreams[i] != null) {
+                        try {
+                            inputStreams[i].close();
+                        } catch (IOException e) { }
+                        inputStreams[i] = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Wakes thread up so that it reevaluates which sources are active
+         */
+        void wakeup() {
+            final InputPoller poller = mPoller;
+            if (poller != null) {
+                poller.wakeup();
+            }
+            synchronized (mActiveLock) {
+                mActiveLock.notifyAll();
+            }
+        }
+
+        /**
+         * Without poll inactive source cannot be left out of waiting so its reader
+         * parks here instead until wakeup() finds it active again
+         * @param activeSinceUs value returned by previous call
+         * @return wall time in us before which read events belong to previous inactive period
+         */
+        private long awaitActive(int index, long activeSinceUs) throws InterruptedException {
+            if (mThreadSources[index].isActive()) return activeSinceUs;
+            if (DEBUG) Log.d(TAG, "Not reading " + mThreadSources[index]);
+            synchronized (mActiveLock) {
+                while (!mThreadSources[index].isActive()) {
+                    mActiveLock.wait();
                 }
             }
+            return System.currentTimeMillis() * 1000;
         }
 
-        private String getInputDevicePath() {
-            File[] inputDirs = new File("/sys/devices/virtual/input").listFiles();
-            if (inputDirs == null)
-                throw new UnsupportedOperationException("Unable to determine input device path");
-
-            String eventName = null;
-            for (File inputDir : inputDirs) {
-                if (!inputDir.isDirectory()) continue;
-                File[] inputFiles = inputDir.listFiles();
-                if (inputFiles == null) continue;
-                boolean isWakeGesture = false;
-                eventName = null;
-                for (File inputFile : inputFiles) {
-                    if (inputFile.getName().startsWith("event")) {
-                        eventName = inputFile.getName();
+        private void updatePollSet(InputPoller poller, FileInputStream[] inputStreams, byte[] events,
+                boolean[] enabled, boolean[] failed) throws Exception {
+            for (int i = 0; i < enabled.length; i++) {
+                if (failed[i]) continue;
+                final boolean active = mThreadSources[i].isActive();
+                if (active == enabled[i]) continue;
+                if (DEBUG) Log.d(TAG, (active ? "Polling " : "Not polling ") + mThreadSources[i]);
+                poller.setEnabled(i, active);
+                enabled[i] = active;
+                if (active) {
+                    // events queued while not polled belong to previous state
+                    while (poller.pollNow() > 0 && poller.isReadable(i)) {
+                        if (inputStreams[i].read(events) < 0) break;
                     }
-                    if (inputFile.getName().equals("name")) {
+                }
+            }
+        }
+
+        /**
+         * Poll not available: this thread keeps reading first source and other sources
+         * get thread each. Streams remain owned by this thread.
+         */
+        private void startFallbackThreads(final FileInputStream[] inputStreams) {
+            if (DEBUG) Log.d(TAG, "Poll not available; using thread per source");
+            for (int i = 1; i < inputStreams.length; i++) {
+                final int index = i;
+                Thread t = new Thread("WakeGestureInput" + i) {
+                    @Override
+                    public void run() {
+                        final byte[] events = new byte[READ_BUFFER_EVENTS * EVENT_SIZE];
+                        final ByteBuffer buf = ByteBuffer.wrap(events).order(ByteOrder.LITTLE_ENDIAN);
+                        long activeSinceUs = 0;
                         try {
-                            String line = readFileSingleLine(inputFile);
-                            if (CONFIG_WG_DEVICE_NAME.equals(line)) {
-                                isWakeGesture = true;
+                            while (!isInterrupted()) {
+                                activeSinceUs = awaitActive(index, activeSinceUs);
+                                if (!readEvents(inputStreams[index], events, buf, index,
+                                        activeSinceUs)) break;
                             }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error reading device name: " + e.getMessage());
+                        } catch (InterruptedException e) {
+                            // stopped
+                        } catch (IOException e) {
+                            sendExceptionMessage(e);
                         }
                     }
-                }
-                if (isWakeGesture) break;
+                };
+                t.start();
             }
+        }
 
-            if (eventName == null)
-                throw new UnsupportedOperationException("Unable to determine input device path");
-
-            String devicePath = String.format("/dev/input/%s", eventName);
-            if (DEBUG) Log.d(TAG, "Found wake gesture input device as: " + devicePath);
-            return devicePath;
+        /**
+         * Reads available events of source and decodes them
+         * @param sinceUs events older than this were queued while source was inactive
+         * and are skipped; 0 to decode all
+         * @return false on end of stream
+         */
+        private boolean readEvents(FileInputStream inputStream, byte[] events, ByteBuffer buf,
+                int index, long sinceUs) throws IOException {
+            // evdev always returns whole events
+            final int len = inputStream.read(events);
+            if (len < 0) return false;
+            for (int pos = 0; pos + EVENT_SIZE <= len; pos += EVENT_SIZE) {
+                decodeEvent(buf, pos, index, sinceUs);
+            }
+            return true;
         }
 
-        private void sendEventMessage(byte[] event) {
-            EventData data = new EventData(event);
-            Message msg = Message.obtain(mHandler, MSG_EVENT_RECEIVED, 0, 0, data);
+        private void decodeEvent(ByteBuffer buf, int pos, int index, long sinceUs) {
+            final long timeSec;
+            final int timeUsec;
+            if (IS_64BIT) {
+                timeSec = buf.getLong(pos);
+                timeUsec = (int) buf.getLong(pos + 8);
+                pos += 16;
+            } else {
+                timeSec = buf.getInt(pos) & 0xFFFFFFFFL;
+                timeUsec = buf.getInt(pos + 4);
+                pos += 8;
+            }
+            final int type = buf.getShort(pos) & 0xFFFF;
+            final int code = buf.getShort(pos + 2) & 0xFFFF;
+            final int value = buf.getInt(pos + 4);
+            if (timeSec * 1000000 + timeUsec < sinceUs) return;
+
+            final int gesture = mThreadSources[index].mapEvent(type, code, value);
+            if (gesture < 0) return;
+
+            Message msg = Message.obtain(mHandler, MSG_EVENT_RECEIVED,
+                    (timeUsec << 8) | (index << 4) | gesture, (int) timeSec);
             mHandler.sendMessage(msg);
         }
 
@@ -324,68 +533,4 @@ public class WakeGestureProcessor {
             mHandler.sendMessage(msg);
         }
     }
-
-    private static int readFileSingleLineAsInt(File f) throws IOException, NumberFormatException {
-        return Integer.valueOf(readFileSingleLine(f));
-    }
-
-    private static String readFileSingleLine(File f) throws IOException {
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new FileReader(f));
-            String line = reader.readLine();
-            reader.close();
-            return line;
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e1) { }
-            }
-        }
-    }
-
-    private class EventData {
-        final int timeSec;
-        final int timeUsec;
-        final short type;
-        final short code;
-        final int value;
-
-        public EventData(byte[] data) {
-            byte[] tmp;
-
-            tmp = new byte[4];
-            System.arraycopy(data, 0, tmp, 0, tmp.length);
-            timeSec = toBuffer(tmp).getInt();
-
-            System.arraycopy(data, 4, tmp, 0, tmp.length);
-            timeUsec = getInt(tmp);
-
-            tmp = new byte[2];
-            System.arraycopy(data, 8, tmp, 0, tmp.length);
-            type = getShort(tmp);
-
-            System.arraycopy(data, 10, tmp, 0, tmp.length);
-            code = getShort(tmp);
-
-            tmp = new byte[4];
-            System.arraycopy(data, 12, tmp, 0, tmp.length);
-            value = getInt(tmp);
-        }
-
-        private int getInt(byte[] array) {
-            return toBuffer(array).getInt();
-        }
-
-        private short getShort(byte[] array) {
-            return toBuffer(array).getShort();
-        }
-
-        private ByteBuffer toBuffer(byte[] array) {
-            ByteBuffer buf = ByteBuffer.wrap(array);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            return buf;
-        }
-    }
 }
@@ -1,11 +1,19 @@
 package com.ceco.wakegestures;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+import com.ceco.wakegestures.preference.AppCatalogManager;
 import com.ceco.wakegestures.preference.AppPickerPreference;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -16,15 +24,20 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceScreen;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class WakeGestureSettings extends Activity {
     public static final String PREF_CAT_KEY_GESTURES = "pref_cat_gestures";
@@ -41,19 +54,20 @@ public class WakeGestureSettings extends Activity {
     public static final String PREF_KEY_WG_SWEEP_DOWN_DBL = "pref_wg_sweep_down_dbl";
     public static final String PREF_KEY_WG_DOUBLETAP = "pref_wg_doubletap";
     public static final String PREF_KEY_WG_DOUBLETAP_DBL = "pref_wg_doubletap_dbl";
+    public static final String PREF_KEY_RULES_SUFFIX = "_rules";
     public static final String PREF_KEY_POCKET_MODE = "pref_pocket_mode";
     public static final String PREF_KEY_ACTIVE_MUSIC = "pref_active_music";
+    public static final String PREF_KEY_TORCH_WARM_MODE = "pref_torch_warm_mode";
+    public static final String PREF_KEY_GESTURE_STATS = "pref_gesture_stats";
 
-    public static final String ACTION_WAKE_GESTURE_CHANGED = "wakegestures.intent.action.WAKE_GESTURE_CHANGED";
-    public static final String ACTION_DOUBLE_WAKE_GESTURE_CHANGED = "wakegestures.intent.action.DOUBLE_WAKE_GESTURE_CHANGED";
-    public static final String EXTRA_WAKE_GESTURE = "wakeGesture";
-    public static final String EXTRA_INTENT_URI = "intentUri";
-
-    public static final String ACTION_SETTINGS_CHANGED = "wakegestures.intent.action.SETTINGS_CHANGED";
-    public static final String EXTRA_POCKET_MODE = "pocketMode";
-    public static final String EXTRA_ACTIVE_MUSIC = "activeMusic";
+    public static final String ACTION_CONFIG_CHANGED = "wakegestures.intent.action.CONFIG_CHANGED";
+    public static final String EXTRA_CONFIG_VERSION = "configVersion";
 
     private static final int REQ_OBTAIN_SHORTCUT = 1028;
+    private static final String TAG = "WG:Settings";
+    private static final boolean DEBUG = false;
+    private static final long CONFIG_CHANGE_DELAY_MS = 500;
+    private static final int GESTURE_STATS_DAYS = 30;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -64,6 +78,18 @@ public class WakeGestureSettings extends Activity {
             getFragmentManager().beginTransaction()
                     .add(R.id.container, new PlaceholderFragment()).commit();
         }
+
+        // app catalogs are shared by all pickers so load them before any picker is opened
+        AppCatalogManager catalogManager = AppCatalogManager.getInstance();
+        catalogManager.acquire(this);
+        catalogManager.prefetch(AppPickerPreference.MODE_APP);
+        catalogManager.prefetch(AppPickerPreference.MODE_SHORTCUT);
+    }
+
+    @Override
+    protected void onDestroy() {
+        AppCatalogManager.getInstance().release();
+        super.onDestroy();
     }
 
     public static class PlaceholderFragment extends Fragment {
@@ -107,11 +133,31 @@ public class WakeGestureSettings extends Activity {
     }
 
     public static class SettingsFragment extends PreferenceFragment implements OnSharedPreferenceChangeListener {
+        private static final String[] GESTURE_PREF_KEYS = new String[] {
+            PREF_KEY_WG_SWEEP_RIGHT, PREF_KEY_WG_SWEEP_RIGHT_DBL,
+            PREF_KEY_WG_SWEEP_LEFT, PREF_KEY_WG_SWEEP_LEFT_DBL,
+            PREF_KEY_WG_SWEEP_UP, PREF_KEY_WG_SWEEP_UP_DBL,
+            PREF_KEY_WG_SWEEP_DOWN, PREF_KEY_WG_SWEEP_DOWN_DBL,
+            PREF_KEY_WG_DOUBLETAP, PREF_KEY_WG_DOUBLETAP_DBL
+        };
+
+        // indexed by gesture ordinal
+        private static final int[] GESTURE_TITLES = new int[] {
+            R.string.pref_wg_sweep_right_title, R.string.pref_wg_sweep_left_title,
+            R.string.pref_wg_sweep_up_title, R.string.pref_wg_sweep_down_title,
+            R.string.pref_wg_doubletap_title
+        };
+
         private SharedPreferences mPrefs;
         private PreferenceCategory mPrefCatGestures;
         private Preference mPrefAbout;
         private Preference mPrefAboutDonate;
         private Preference mPrefAboutElementalX;
+        private Preference mPrefGestureStats;
+        private Handler mHandler;
+        private int mPendingConfigChanges;
+        private int mBroadcastCount;
+        private long mUiTimeNs;
 
         @SuppressWarnings("deprecation")
         @Override
@@ -126,6 +172,12 @@ public class WakeGestureSettings extends Activity {
 
             mPrefCatGestures = (PreferenceCategory) findPreference(PREF_CAT_KEY_GESTURES);
 
+            for (String key : GESTURE_PREF_KEYS) {
+                Preference rulesPref = findPreference(key + PREF_KEY_RULES_SUFFIX);
+                rulesPref.setOnPreferenceChangeListener(mRulesChangeListener);
+                updateRulesSummary(rulesPref, mPrefs.getString(rulesPref.getKey(), null));
+            }
+
             mPrefAbout = findPreference(PREF_KEY_ABOUT);
             String version = "";
             try {
@@ -139,6 +191,101 @@ public class WakeGestureSettings extends Activity {
 
             mPrefAboutDonate = findPreference(PREF_KEY_ABOUT_DONATE);
             mPrefAboutElementalX = findPreference(PREF_KEY_ABOUT_ELEMENTALX);
+            mPrefGestureStats = findPreference(PREF_KEY_GESTURE_STATS);
+
+            mHandler = new Handler();
+
+            // create config store for users upgrading from preferences only version
+            if (!getConfigStoreFile().exists()) {
+                mPendingConfigChanges++;
+                flushConfigChanges();
+            }
+
+            // shape templates are copied in by user; system_server picks them up on next boot
+            ShapeGestureSource.exposeTemplatesFile(new File(getActivity().getFilesDir(),
+                    ShapeGestureSource.TEMPLATES_FILE_NAME));
+        }
+
+        private File getConfigStoreFile() {
+            return new File(getActivity().getFilesDir(), ConfigStore.FILE_NAME);
+        }
+
+        /**
+         * Writes all changes accumulated since last flush to config store in background
+         * and notifies system_server with single broadcast
+         */
+        private void flushConfigChanges() {
+            mHandler.removeCallbacks(mFlushConfigRunnable);
+            if (mPendingConfigChanges == 0) return;
+
+            if (DEBUG) Log.d(TAG, "Flushing " + mPendingConfigChanges + " config change(s)");
+            mPendingConfigChanges = 0;
+            final Context context = getActivity().getApplicationContext();
+            final File file = getConfigStoreFile();
+            final SharedPreferences prefs = mPrefs;
+            new AsyncTask<Void, Void, Integer>() {
+                @Override
+                protected Integer doInBackground(Void... params) {
+                    try {
+                        return ConfigStore.write(file, prefs);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return -1;
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Integer version) {
+                    if (version > 0) {
+                        Intent intent = new Intent(ACTION_CONFIG_CHANGED);
+                        intent.putExtra(EXTRA_CONFIG_VERSION, version);
+                        context.sendBroadcast(intent);
+                        mBroadcastCount++;
+                    }
+                }
+            }.execute();
+        }
+
+        private Runnable mFlushConfigRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final long startNs = System.nanoTime();
+                flushConfigChanges();
+                mUiTimeNs += System.nanoTime() - startNs;
+            }
+        };
+
+        private void updateRulesSummary(Preference pref, String spec) {
+            if (spec == null || spec.trim().length() == 0) {
+                pref.setSummary(R.string.app_picker_none);
+            } else {
+                pref.setSummary(spec);
+            }
+        }
+
+        private OnPreferenceChangeListener mRulesChangeListener = new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference pref, Object newValue) {
+                final String spec = (String) newValue;
+                List<String> errors = new ArrayList<String>();
+                GestureRules.compile(spec, errors);
+                if (!errors.isEmpty()) {
+                    Toast.makeText(getActivity(), getString(R.string.pref_rules_invalid, errors.get(0)),
+                            Toast.LENGTH_LONG).show();
+                    return false;
+                }
+                updateRulesSummary(pref, spec);
+                return true;
+            }
+        };
+
+        private static boolean isConfigKey(String key) {
+            if (key.endsWith(PREF_KEY_RULES_SUFFIX)) {
+                key = key.substring(0, key.length() - PREF_KEY_RULES_SUFFIX.length());
+            }
+            return (key.startsWith("pref_wg_") ||
+                    key.equals(PREF_KEY_POCKET_MODE) ||
+                    key.equals(PREF_KEY_ACTIVE_MUSIC));
         }
 
         protected void setGesturePrefsEnabled(boolean enabled) {
@@ -149,6 +296,8 @@ public class WakeGestureSettings extends Activity {
         public void onResume() {
             super.onResume();
             mPrefs.registerOnSharedPreferenceChangeListener(this);
+            mBroadcastCount = 0;
+            mUiTimeNs = 0;
 
             
             findPreference(PREF_KEY_WG_SWEEP_RIGHT).setEnabled(WakeGesture.SWEEP_RIGHT.isEnabled());
@@ -175,6 +324,9 @@ public class WakeGestureSettings extends Activity {
         @Override
         public void onPause() {
             mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+            flushConfigChanges();
+            if (DEBUG) Log.d(TAG, "Edit session: broadcasts=" + mBroadcastCount +
+                    "; uiTime=" + mUiTimeNs / 1000 + "us");
             super.onPause();
         }
 
@@ -188,6 +340,9 @@ public class WakeGestureSettings extends Activity {
                 intent = new Intent(Intent.ACTION_VIEW, Uri.parse(getString(R.string.url_donate)));
             } else if (pref == mPrefAboutElementalX) {
                 intent = new Intent(Intent.ACTION_VIEW, Uri.parse(getString(R.string.url_elementalx)));
+            } else if (pref == mPrefGestureStats) {
+                GestureHistory.sendQuery(getActivity(), GESTURE_STATS_DAYS, mGestureStatsReceiver);
+                return true;
             }
 
             if (intent != null) {
@@ -204,49 +359,61 @@ public class WakeGestureSettings extends Activity {
 
         @Override
         public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
-            Intent intent = new Intent(ACTION_WAKE_GESTURE_CHANGED);
-
-            if (key.equals(PREF_KEY_WG_SWEEP_RIGHT)) {
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_RIGHT");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_RIGHT_DBL)) {
-                intent.setAction(ACTION_DOUBLE_WAKE_GESTURE_CHANGED);
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_RIGHT");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_LEFT)) {
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_LEFT");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_LEFT_DBL)) {
-                intent.setAction(ACTION_DOUBLE_WAKE_GESTURE_CHANGED);
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_LEFT");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_UP)) {
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_UP");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_UP_DBL)) {
-                intent.setAction(ACTION_DOUBLE_WAKE_GESTURE_CHANGED);
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_UP");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_DOWN)) {
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_DOWN");
-            } else if (key.equals(PREF_KEY_WG_SWEEP_DOWN_DBL)) {
-                intent.setAction(ACTION_DOUBLE_WAKE_GESTURE_CHANGED);
-                intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_DOWN");
-            } else if (key.equals(PREF_KEY_WG_DOUBLETAP)) {
-                intent.putExtra(EXTRA_WAKE_GESTURE, "DOUBLETAP");
-            } else if (key.equals(PREF_KEY_WG_DOUBLETAP_DBL)) {
-                intent.setAction(ACTION_DOUBLE_WAKE_GESTURE_CHANGED);
-                intent.putExtra(EXTRA_WAKE_GESTURE, "DOUBLETAP");
-            } else if (key.equals(PREF_KEY_POCKET_MODE)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_POCKET_MODE, prefs.getBoolean(key, false));
-            } else if (key.equals(PREF_KEY_ACTIVE_MUSIC)) {
-                intent.setAction(ACTION_SETTINGS_CHANGED);
-                intent.putExtra(EXTRA_ACTIVE_MUSIC, prefs.getBoolean(key, false));
-            }
+            if (!isConfigKey(key)) return;
+
+            // changes are batched and delivered once no further change came within delay
+            final long startNs = System.nanoTime();
+            mPendingConfigChanges++;
+            mHandler.removeCallbacks(mFlushConfigRunnable);
+            mHandler.postDelayed(mFlushConfigRunnable, CONFIG_CHANGE_DELAY_MS);
+            mUiTimeNs += System.nanoTime() - startNs;
+        }
 
-            if (intent.hasExtra(EXTRA_WAKE_GESTURE) ||
-                    ACTION_SETTINGS_CHANGED.equals(intent.getAction())) {
-                prefs.edit().commit();
-                if (intent.hasExtra(EXTRA_WAKE_GESTURE)) {
-                    intent.putExtra(EXTRA_INTENT_URI, prefs.getString(key, null));
+        private BroadcastReceiver mGestureStatsReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (getActivity() == null) return;
+
+                // no result extras when system_server part of module is not running
+                Bundle result = getResultExtras(false);
+                if (result == null || !result.containsKey(GestureHistory.EXTRA_COUNTS)) {
+                    Toast.makeText(getActivity(), R.string.gesture_stats_unavailable,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
+                new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.pref_gesture_stats_title)
+                    .setMessage(formatGestureStats(result))
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+            }
+        };
+
+        private String formatGestureStats(Bundle result) {
+            final int[] counts = result.getIntArray(GestureHistory.EXTRA_COUNTS);
+            final int[] executed = result.getIntArray(GestureHistory.EXTRA_EXECUTED);
+            final int[] falseTriggers = result.getIntArray(GestureHistory.EXTRA_FALSE_TRIGGERS);
+            final int[] p50 = result.getIntArray(GestureHistory.EXTRA_LATENCY_P50);
+            final int[] p99 = result.getIntArray(GestureHistory.EXTRA_LATENCY_P99);
+
+            StringBuilder sb = new StringBuilder();
+            for (int g = 0; g < GESTURE_TITLES.length && g < counts.length; g++) {
+                if (sb.length() > 0) sb.append("\n\n");
+                sb.append(getString(GESTURE_TITLES[g])).append("\n")
+                    .append(getString(R.string.gesture_stats_counts,
+                            counts[g], executed[g], falseTriggers[g]));
+                if (p50[g] >= 0) {
+                    sb.append("\n").append(getString(R.string.gesture_stats_latency,
+                            formatLatencyBucket(p50[g]), formatLatencyBucket(p99[g])));
                 }
-                getActivity().sendBroadcast(intent);
             }
+            return sb.toString();
+        }
+
+        private static String formatLatencyBucket(int upperBoundMs) {
+            // last histogram bucket is unbounded
+            return (upperBoundMs == Integer.MAX_VALUE ? ">10000" : "\u2264" + upperBoundMs);
         }
 
         public interface ShortcutHandler {
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures.adapters;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * Item whose left icon may be expensive to obtain.
+ * IconListAdapter calls getIconLeft() of such items on background thread.
+ */
+public interface IAsyncIconListAdapterItem extends IIconListAdapterItem {
+    /**
+     * @return left icon if it is available without blocking, null otherwise
+     */
+    public Drawable getCachedIconLeft();
+
+    /**
+     * @return false if item has no left icon so no placeholder should be shown
+     */
+    public boolean hasIconLeft();
+}
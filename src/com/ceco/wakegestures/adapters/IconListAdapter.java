@@ -16,23 +16,58 @@
 package com.ceco.wakegestures.adapters;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.ceco.wakegestures.adapters.BaseListAdapterFilter.IBaseListAdapterFilterable;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
 public class IconListAdapter extends ArrayAdapter<IIconListAdapterItem>
                              implements IBaseListAdapterFilterable<IIconListAdapterItem> {
+    private static final String TAG = "WG:IconListAdapter";
+    private static final boolean DEBUG = false;
+
+    // number of rows beyond the last bound one whose icons are loaded ahead
+    private static final int PREFETCH_DISTANCE = 6;
+    private static final int LOADER_THREADS = 2;
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_PREFETCH = 1;
+
+    private static ThreadPoolExecutor sIconExecutor;
+    private static final AtomicLong sTaskSequence = new AtomicLong();
+
     private Context mContext;
     private List<IIconListAdapterItem> mData = null;
     private List<IIconListAdapterItem> mFilteredData = null;
     private android.widget.Filter mFilter;
+    private final Handler mHandler = new Handler();
+    private Drawable mIconPlaceholder;
+    private final Map<IAsyncIconListAdapterItem, Future<?>> mPrefetching =
+            new HashMap<IAsyncIconListAdapterItem, Future<?>>();
+    private int mLastPosition;
+    private int mPrefetchStep = 1;
+    private int mGetViewCount;
+    private long mGetViewTimeNs;
 
     public IconListAdapter(Context context, List<IIconListAdapterItem> objects) {
         super(context, android.R.layout.simple_list_item_1, objects);
@@ -44,10 +79,65 @@ public class IconListAdapter extends ArrayAdapter<IIconListAdapterItem>
 
     static class ViewHolder {
         TextView text;
+        // item row is currently bound to; checked by icon loads to detect recycled rows
+        volatile IIconListAdapterItem item;
+        Future<?> iconTask;
+    }
+
+    /**
+     * Icon load ordered in executor queue. Loads of bound rows go first, most recently bound
+     * first as rows bound earlier may have scrolled away already while flinging. Prefetches
+     * follow in order they were requested, i.e. nearest rows first.
+     */
+    private static class IconTask extends FutureTask<Void> implements Comparable<IconTask> {
+        final int priority;
+        final long sequence = sTaskSequence.incrementAndGet();
+
+        IconTask(Runnable runnable, int priority) {
+            super(runnable, null);
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(IconTask other) {
+            if (priority != other.priority) return (priority < other.priority ? -1 : 1);
+            if (sequence == other.sequence) return 0;
+            final boolean newer = (sequence > other.sequence);
+            return ((priority == PRIORITY_VISIBLE) == newer ? -1 : 1);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getIconExecutor() {
+        if (sIconExecutor == null) {
+            sIconExecutor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 5, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "IconLoader");
+                        }
+                    });
+            sIconExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sIconExecutor;
+    }
+
+    /**
+     * Sets drawable shown while icon of IAsyncIconListAdapterItem is being loaded.
+     * Should have intrinsic size of icons so that rows do not change layout.
+     */
+    public void setIconPlaceholder(Drawable placeholder) {
+        mIconPlaceholder = placeholder;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
+        final long startNs = DEBUG ? System.nanoTime() : 0;
         View row = convertView;
         ViewHolder holder = null;
 
@@ -67,12 +157,182 @@ public class IconListAdapter extends ArrayAdapter<IIconListAdapterItem>
         IIconListAdapterItem item = mFilteredData.get(position);
 
         holder.text.setText(item.getText());
-        holder.text.setCompoundDrawablesWithIntrinsicBounds(
-                item.getIconLeft(), null, item.getIconRight(), null);
+        if (item instanceof IAsyncIconListAdapterItem) {
+            bindAsyncIcon(holder, (IAsyncIconListAdapterItem) item);
+            prefetchIcons(position);
+        } else {
+            cancelIconTask(holder);
+            holder.item = item;
+            holder.text.setCompoundDrawablesWithIntrinsicBounds(
+                    item.getIconLeft(), null, item.getIconRight(), null);
+        }
 
+        if (DEBUG) {
+            mGetViewTimeNs += System.nanoTime() - startNs;
+            if (++mGetViewCount % 100 == 0) {
+                Log.d(TAG, "getView avg=" + mGetViewTimeNs / mGetViewCount / 1000 + "us");
+            }
+        }
         return row;
     }
 
+    private void bindAsyncIcon(final ViewHolder holder, final IAsyncIconListAdapterItem item) {
+        if (holder.item == item && holder.iconTask != null) return;
+
+        // row got recycled; its pending load is stale
+        cancelIconTask(holder);
+        holder.item = item;
+
+        Drawable icon = item.getCachedIconLeft();
+        if (icon == null && item.hasIconLeft()) {
+            icon = mIconPlaceholder;
+            IconTask task = new IconTask(new Runnable() {
+                @Override
+                public void run() {
+                    if (holder.item != item) return;
+                    final Drawable loaded = item.getIconLeft();
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (holder.item != item) return;
+                            holder.iconTask = null;
+                            holder.text.setCompoundDrawablesWithIntrinsicBounds(
+                                    loaded, null, item.getIconRight(), null);
+                        }
+                    });
+                }
+            }, PRIORITY_VISIBLE);
+            holder.iconTask = task;
+            getIconExecutor().execute(task);
+        }
+        holder.text.setCompoundDrawablesWithIntrinsicBounds(icon, null, item.getIconRight(), null);
+    }
+
+    private static void cancelIconTask(ViewHolder holder) {
+        if (holder.iconTask != null) {
+            holder.iconTask.cancel(false);
+            holder.iconTask = null;
+        }
+    }
+
+    /**
+     * Loads icons of rows about to become visible in direction of scrolling.
+     * Prefetches still queued for the other direction are cancelled.
+     */
+    private void prefetchIcons(int position) {
+        final int step = (position >= mLastPosition ? 1 : -1);
+        mLastPosition = position;
+        if (step != mPrefetchStep) {
+            mPrefetchStep = step;
+            cancelPrefetching();
+        }
+        for (int i = 1; i <= PREFETCH_DISTANCE; i++) {
+            final int p = position + i * step;
+            if (p < 0 || p >= mFilteredData.size()) break;
+            if (!(mFilteredData.get(p) instanceof IAsyncIconListAdapterItem)) continue;
+
+            final IAsyncIconListAdapterItem item = (IAsyncIconListAdapterItem) mFilteredData.get(p);
+            if (!item.hasIconLeft() || mPrefetching.containsKey(item) ||
+                    item.getCachedIconLeft() != null) continue;
+
+            IconTask task = new IconTask(new Runnable() {
+                @Override
+                public void run() {
+                    item.getIconLeft();
+                }
+            }, PRIORITY_PREFETCH) {
+                @Override
+                protected void done() {
+                    // called when finished or cancelled; item may be queued again meanwhile
+                    final Future<?> finished = this;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mPrefetching.get(item) == finished) {
+                                mPrefetching.remove(item);
+                            }
+                        }
+                    });
+                }
+            };
+            mPrefetching.put(item, task);
+            getIconExecutor().execute(task);
+        }
+    }
+
+    private void cancelPrefetching() {
+        for (Future<?> task : mPrefetching.values()) {
+            task.cancel(false);
+        }
+        mPrefetching.clear();
+    }
+
+    /**
+     * Scroll listener measuring frame times while list is flinging. Used for debugging only.
+     */
+    public static class FlingFrameMonitor implements AbsListView.OnScrollListener,
+                                                     Choreographer.FrameCallback {
+        private static final long JANK_THRESHOLD_NS = 25000000;
+        private boolean mFlinging;
+        private long mLastFrameNs;
+        private int mFrames;
+        private int mJankFrames;
+        private long mTotalFrameNs;
+        private long mMaxFrameNs;
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            final boolean flinging = (scrollState == SCROLL_STATE_FLING);
+            if (flinging == mFlinging) return;
+            mFlinging = flinging;
+            if (flinging) {
+                mLastFrameNs = 0;
+                mFrames = mJankFrames = 0;
+                mTotalFrameNs = mMaxFrameNs = 0;
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                Choreographer.getInstance().removeFrameCallback(this);
+                if (mFrames > 0) {
+                    Log.d(TAG, "Fling: frames=" + mFrames + "; avg=" + mTotalFrameNs / mFrames / 1000 +
+                            "us; max=" + mMaxFrameNs / 1000 + "us; janky=" + mJankFrames);
+                }
+            }
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) { }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mFlinging) return;
+            if (mLastFrameNs != 0) {
+                final long frameNs = frameTimeNanos - mLastFrameNs;
+                mFrames++;
+                mTotalFrameNs += frameNs;
+                mMaxFrameNs = Math.max(mMaxFrameNs, frameNs);
+                if (frameNs > JANK_THRESHOLD_NS) {
+                    mJankFrames++;
+                }
+            }
+            mLastFrameNs = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Replaces data. Active filter is reset.
+     */
+    public void setItems(List<IIconListAdapterItem> items) {
+        cancelPrefetching();
+        mData = new ArrayList<IIconListAdapterItem>(items);
+        mFilteredData = new ArrayList<IIconListAdapterItem>(items);
+        setNotifyOnChange(false);
+        clear();
+        addAll(items);
+        notifyDataSetChanged();
+    }
+
     @Override
     public android.widget.Filter getFilter() {
         if(mFilter == null)
@@ -93,6 +353,7 @@ public class IconListAdapter extends ArrayAdapter<IIconListAdapterItem>
 
     @Override
     public void onFilterPublishResults(List<IIconListAdapterItem> results) {
+        cancelPrefetching();
         mFilteredData = results;
         clear();
         for (int i = 0; i < mFilteredData.size(); i++)
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures.preference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+/**
+ * Persistent catalog of activities offered by app picker
+ *
+ * Catalog keeps component, label, icon cache key and package update time of every activity
+ * so that picker can show the list without asking PackageManager. It is brought up to date
+ * by diffing package update times against installed packages and by packages marked dirty
+ * by PackageChangeReceiver (e.g. components enabled or disabled without update).
+ * Labels depend on locale so catalog built for another locale is discarded.
+ *
+ * File layout (big endian):
+ *   int magic, short format, UTF locale,
+ *   int packageCount, packageCount * { UTF packageName, long lastUpdateTime },
+ *   int entryCount, entryCount * { UTF packageName, UTF className, UTF label, long lastUpdateTime }
+ */
+public class AppCatalog {
+    private static final String TAG = "WG:AppCatalog";
+    private static final boolean DEBUG = false;
+
+    private static final int MAGIC = 0x57474143; // WGAC
+    private static final short FORMAT = 1;
+    private static final String PREFS_NAME = "app_catalog";
+    private static final String PREF_KEY_DIRTY = "dirty_packages_";
+    private static final int[] MODES = new int[] {
+        AppPickerPreference.MODE_APP, AppPickerPreference.MODE_SHORTCUT };
+    // above this number of changed packages single unfiltered query is cheaper than per package queries
+    private static final int MAX_PACKAGE_QUERIES = 8;
+
+    public static class Entry {
+        public final ComponentName component;
+        public final String label;
+        public final String iconKey;
+        public final long lastUpdateTime;
+
+        public Entry(ComponentName component, String label, long lastUpdateTime) {
+            this.component = component;
+            this.label = label;
+            this.lastUpdateTime = lastUpdateTime;
+            // icons need to be reloaded when package gets updated
+            this.iconKey = component.flattenToShortString() + "@" + lastUpdateTime;
+        }
+    }
+
+    /**
+     * Difference between catalog and installed packages
+     */
+    public class Diff {
+        private final Map<String, Long> mInstalled;
+        private final Set<String> mChanged;
+        private final Set<String> mDirty;
+        private final boolean mRemoved;
+
+        private Diff(Map<String, Long> installed, Set<String> changed, Set<String> dirty, boolean removed) {
+            mInstalled = installed;
+            mChanged = changed;
+            mDirty = dirty;
+            mRemoved = removed;
+        }
+
+        public boolean isEmpty() {
+            return (mChanged.isEmpty() && !mRemoved);
+        }
+
+        public long getLastUpdateTime(String packageName) {
+            Long time = mInstalled.get(packageName);
+            return (time == null ? 0 : time);
+        }
+
+        /**
+         * @return activities of changed packages
+         */
+        public List<ResolveInfo> resolve(PackageManager pm) {
+            final Intent intent = createQueryIntent(mMode);
+            List<ResolveInfo> result;
+            if (mChanged.size() > MAX_PACKAGE_QUERIES) {
+                result = pm.queryIntentActivities(intent, 0);
+                if (mChanged.size() < mInstalled.size()) {
+                    List<ResolveInfo> filtered = new ArrayList<ResolveInfo>();
+                    for (ResolveInfo ri : result) {
+                        if (mChanged.contains(ri.activityInfo.packageName)) {
+                            filtered.add(ri);
+                        }
+                    }
+                    result = filtered;
+                }
+            } else {
+                result = new ArrayList<ResolveInfo>();
+                for (String packageName : mChanged) {
+                    intent.setPackage(packageName);
+                    result.addAll(pm.queryIntentActivities(intent, 0));
+                }
+            }
+            return result;
+        }
+    }
+
+    private final Context mContext;
+    private final int mMode;
+    private final Map<String, Long> mPackages;
+    private List<Entry> mEntries;
+
+    private AppCatalog(Context context, int mode, Map<String, Long> packages, List<Entry> entries) {
+        mContext = context;
+        mMode = mode;
+        mPackages = packages;
+        mEntries = entries;
+    }
+
+    public static Intent createQueryIntent(int mode) {
+        Intent intent = new Intent();
+        if (mode == AppPickerPreference.MODE_SHORTCUT) {
+            intent.setAction(Intent.ACTION_CREATE_SHORTCUT);
+        } else {
+            intent.setAction(Intent.ACTION_MAIN);
+            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        }
+        return intent;
+    }
+
+    private static File getFile(Context context, int mode) {
+        return new File(context.getFilesDir(), "app_catalog_" + mode + ".bin");
+    }
+
+    /**
+     * Loads catalog from file
+     * @return catalog; empty one when file does not exist, is invalid or was built for another locale
+     */
+    public static AppCatalog load(Context context, int mode) {
+        final long startMs = System.currentTimeMillis();
+        Map<String, Long> packages = new HashMap<String, Long>();
+        List<Entry> entries = new ArrayList<Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(getFile(context, mode))));
+            if (in.readInt() != MAGIC || in.readShort() != FORMAT ||
+                    !Locale.getDefault().toString().equals(in.readUTF())) {
+                throw new IOException("Catalog header mismatch");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                packages.put(in.readUTF(), in.readLong());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ComponentName cn = new ComponentName(in.readUTF(), in.readUTF());
+                entries.add(new Entry(cn, in.readUTF(), in.readLong()));
+            }
+        } catch (FileNotFoundException e) {
+            // not built yet
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding catalog: " + e.getMessage());
+            packages.clear();
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + entries.size() + " entries in " +
+                (System.currentTimeMillis() - startMs) + "ms");
+        return new AppCatalog(context, mode, packages, entries);
+    }
+
+    public boolean isEmpty() {
+        return mPackages.isEmpty();
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Compares catalog with installed packages
+     */
+    public Diff diff(PackageManager pm) {
+        final long startMs = System.currentTimeMillis();
+        Map<String, Long> installed = new HashMap<String, Long>();
+        for (PackageInfo pi : pm.getInstalledPackages(0)) {
+            installed.put(pi.packageName, pi.lastUpdateTime);
+        }
+
+        Set<String> dirty = getPrefs(mContext).getStringSet(PREF_KEY_DIRTY + mMode,
+                Collections.<String>emptySet());
+        dirty = new HashSet<String>(dirty);
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, Long> pkg : installed.entrySet()) {
+            if (!pkg.getValue().equals(mPackages.get(pkg.getKey())) || dirty.contains(pkg.getKey())) {
+                changed.add(pkg.getKey());
+            }
+        }
+        boolean removed = false;
+        for (String packageName : mPackages.keySet()) {
+            if (!installed.containsKey(packageName)) {
+                removed = true;
+                break;
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "Diff: changed=" + changed.size() + "; removed=" + removed + "; took " +
+                (System.currentTimeMillis() - startMs) + "ms");
+        return new Diff(installed, changed, dirty, removed);
+    }
+
+    /**
+     * Replaces entries of changed and removed packages and saves catalog
+     * @param diff diff catalog was refreshed for
+     * @param entries new entries of changed packages
+     */
+    public synchronized void update(Diff diff, List<Entry> entries) {
+        List<Entry> merged = new ArrayList<Entry>(mEntries.size() + entries.size());
+        for (Entry e : mEntries) {
+            final String packageName = e.component.getPackageName();
+            if (diff.mInstalled.containsKey(packageName) && !diff.mChanged.contains(packageName)) {
+                merged.add(e);
+            }
+        }
+        merged.addAll(entries);
+        mEntries = merged;
+        mPackages.clear();
+        mPackages.putAll(diff.mInstalled);
+
+        try {
+            save();
+            clearDirty(diff.mDirty);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving catalog: " + e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        final File f = getFile(mContext, mMode);
+        final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT);
+            out.writeUTF(Locale.getDefault().toString());
+            out.writeInt(mPackages.size());
+            for (Map.Entry<String, Long> pkg : mPackages.entrySet()) {
+                out.writeUTF(pkg.getKey());
+                out.writeLong(pkg.getValue());
+            }
+            out.writeInt(mEntries.size());
+            for (Entry e : mEntries) {
+                out.writeUTF(e.component.getPackageName());
+                out.writeUTF(e.component.getClassName());
+                out.writeUTF(e.label);
+                out.writeLong(e.lastUpdateTime);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp + " to " + f);
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private void clearDirty(Set<String> consumed) {
+        if (consumed.isEmpty()) return;
+        synchronized (AppCatalog.class) {
+            SharedPreferences prefs = getPrefs(mContext);
+            Set<String> dirty = new HashSet<String>(prefs.getStringSet(PREF_KEY_DIRTY + mMode,
+                    Collections.<String>emptySet()));
+            dirty.removeAll(consumed);
+            prefs.edit().putStringSet(PREF_KEY_DIRTY + mMode, dirty).apply();
+        }
+    }
+
+    /**
+     * Marks package so that its activities get resolved again on next refresh of all catalogs
+     */
+    public static void markDirty(Context context, String packageName) {
+        synchronized (AppCatalog.class) {
+            SharedPreferences prefs = getPrefs(context);
+            SharedPreferences.Editor editor = prefs.edit();
+            for (int mode : MODES) {
+                Set<String> dirty = new HashSet<String>(prefs.getStringSet(PREF_KEY_DIRTY + mode,
+                        Collections.<String>emptySet()));
+                dirty.add(packageName);
+                editor.putStringSet(PREF_KEY_DIRTY + mode, dirty);
+            }
+            editor.apply();
+        }
+    }
+}
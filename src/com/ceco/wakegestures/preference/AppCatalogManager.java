@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures.preference;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Process-wide app catalog shared by all app picker preferences
+ *
+ * Catalog of each mode is loaded once while manager is acquired and delivered
+ * to subscribers as immutable snapshots sorted by label. Snapshots are published
+ * progressively while catalog is being built from scratch. Catalogs are dropped
+ * when last reference is released and refreshed on next use after packages changed.
+ * While acquired, installs, updates and removals are watched by runtime receiver and
+ * catalogs with subscribers are refreshed right away. Must be used from main thread.
+ */
+public class AppCatalogManager {
+    private static final String TAG = "WG:AppCatalogManager";
+    private static final boolean DEBUG = false;
+
+    // number of activities whose labels are loaded by single task
+    private static final int CHUNK_SIZE = 24;
+    private static final int MAX_THREADS = 4;
+
+    public interface CatalogListener {
+        /**
+         * @param mode catalog mode
+         * @param entries immutable snapshot sorted by label
+         * @param complete false while catalog is still being refreshed
+         */
+        void onCatalogChanged(int mode, List<AppCatalog.Entry> entries, boolean complete);
+    }
+
+    private static class SortableEntry {
+        final AppCatalog.Entry entry;
+        final CollationKey key;
+
+        SortableEntry(AppCatalog.Entry entry, Collator collator) {
+            this.entry = entry;
+            this.key = collator.getCollationKey(entry.label);
+        }
+    }
+
+    private static final Comparator<SortableEntry> sComparator = new Comparator<SortableEntry>() {
+        @Override
+        public int compare(SortableEntry lhs, SortableEntry rhs) {
+            return lhs.key.compareTo(rhs.key);
+        }
+    };
+
+    private class ModeState {
+        final int mode;
+        final List<CatalogListener> listeners = new ArrayList<CatalogListener>();
+        List<AppCatalog.Entry> snapshot;
+        boolean complete;
+        boolean stale = true;
+        LoaderTask loader;
+
+        ModeState(int mode) {
+            this.mode = mode;
+        }
+    }
+
+    private static AppCatalogManager sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ModeState[] mStates = new ModeState[] {
+        new ModeState(AppPickerPreference.MODE_APP),
+        new ModeState(AppPickerPreference.MODE_SHORTCUT)
+    };
+    private Context mContext;
+    private int mRefCount;
+
+    public static AppCatalogManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new AppCatalogManager();
+        }
+        return sInstance;
+    }
+
+    private AppCatalogManager() { }
+
+    public void acquire(Context context) {
+        if (mRefCount++ == 0) {
+            mContext = context.getApplicationContext();
+            IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addDataScheme("package");
+            mContext.registerReceiver(mPackageReceiver, filter);
+        }
+    }
+
+    public void release() {
+        if (mRefCount == 0 || --mRefCount > 0) return;
+
+        mContext.unregisterReceiver(mPackageReceiver);
+
+        for (ModeState state : mStates) {
+            if (state.loader != null) {
+                state.loader.cancel(true);
+                state.loader = null;
+            }
+            state.snapshot = null;
+            state.complete = false;
+            state.stale = true;
+            state.listeners.clear();
+        }
+        mContext = null;
+        if (DEBUG) Log.d(TAG, "Released catalogs");
+    }
+
+    /**
+     * Starts loading catalog of given mode if not loaded or outdated
+     */
+    public void prefetch(int mode) {
+        ModeState state = getState(mode);
+        if (state == null || mRefCount == 0) return;
+        if (state.stale && state.loader == null) {
+            state.stale = false;
+            state.complete = false;
+            state.loader = new LoaderTask(state, state.snapshot == null);
+            state.loader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /**
+     * Subscribes listener to catalog changes. Already loaded snapshot is delivered immediately.
+     */
+    public void subscribe(int mode, CatalogListener listener) {
+        ModeState state = getState(mode);
+        if (state == null || state.listeners.contains(listener)) return;
+
+        state.listeners.add(listener);
+        if (state.snapshot != null) {
+            listener.onCatalogChanged(mode, state.snapshot, state.complete);
+        }
+        prefetch(mode);
+    }
+
+    public void unsubscribe(int mode, CatalogListener listener) {
+        ModeState state = getState(mode);
+        if (state != null) {
+            state.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Marks catalogs outdated so that they get refreshed on next use
+     */
+    public void invalidate() {
+        for (ModeState state : mStates) {
+            state.stale = true;
+        }
+    }
+
+    // manifest receiver gets PACKAGE_CHANGED only so that app is not started on every install
+    private BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (DEBUG) Log.d(TAG, "Package change while acquired: " + intent.getAction());
+            invalidate();
+            for (ModeState state : mStates) {
+                if (!state.listeners.isEmpty()) {
+                    prefetch(state.mode);
+                }
+            }
+        }
+    };
+
+    private ModeState getState(int mode) {
+        for (ModeState state : mStates) {
+            if (state.mode == mode) return state;
+        }
+        return null;
+    }
+
+    private void publish(final ModeState state, final LoaderTask loader,
+            List<SortableEntry> sorted, final boolean complete) {
+        List<AppCatalog.Entry> entries = new ArrayList<AppCatalog.Entry>(sorted.size());
+        for (SortableEntry se : sorted) {
+            entries.add(se.entry);
+        }
+        final List<AppCatalog.Entry> snapshot = Collections.unmodifiableList(entries);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state.loader != loader) return;
+                state.snapshot = snapshot;
+                state.complete = complete;
+                if (complete) {
+                    state.loader = null;
+                }
+                for (CatalogListener listener : new ArrayList<CatalogListener>(state.listeners)) {
+                    listener.onCatalogChanged(state.mode, snapshot, complete);
+                }
+            }
+        });
+    }
+
+    private static List<SortableEntry> sort(List<AppCatalog.Entry> entries) {
+        final Collator collator = Collator.getInstance();
+        List<SortableEntry> sorted = new ArrayList<SortableEntry>(entries.size());
+        for (AppCatalog.Entry entry : entries) {
+            sorted.add(new SortableEntry(entry, collator));
+        }
+        Collections.sort(sorted, sComparator);
+        return sorted;
+    }
+
+    private static List<SortableEntry> merge(List<SortableEntry> a, List<SortableEntry> b) {
+        List<SortableEntry> merged = new ArrayList<SortableEntry>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            merged.add(sComparator.compare(a.get(i), b.get(j)) <= 0 ? a.get(i++) : b.get(j++));
+        }
+        merged.addAll(a.subList(i, a.size()));
+        merged.addAll(b.subList(j, b.size()));
+        return merged;
+    }
+
+    /**
+     * Loads persisted catalog, brings it up to date and publishes snapshots of it
+     */
+    private class LoaderTask extends AsyncTask<Void, Void, Void> {
+        private final ModeState mState;
+        private final boolean mPublishPersisted;
+        private final Context mLoaderContext;
+        private final PackageManager mPm;
+
+        LoaderTask(ModeState state, boolean publishPersisted) {
+            mState = state;
+            mPublishPersisted = publishPersisted;
+            mLoaderContext = mContext;
+            mPm = mContext.getPackageManager();
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            final long startMs = System.currentTimeMillis();
+            final AppCatalog catalog = AppCatalog.load(mLoaderContext, mState.mode);
+            final boolean streaming = catalog.isEmpty();
+            List<SortableEntry> sorted = sort(catalog.getEntries());
+            if (mPublishPersisted || streaming) {
+                publish(mState, this, sorted, false);
+            }
+
+            final AppCatalog.Diff diff = catalog.diff(mPm);
+            if (diff.isEmpty()) {
+                publish(mState, this, sorted, true);
+                return null;
+            }
+
+            // labels are loaded in parallel; when building catalog from scratch
+            // each chunk is published as soon as it's ready
+            final List<ResolveInfo> activities = diff.resolve(mPm);
+            final List<AppCatalog.Entry> entries = new ArrayList<AppCatalog.Entry>(activities.size());
+            final int threads = Math.max(1, Math.min(MAX_THREADS,
+                    Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                CompletionService<List<SortableEntry>> completion =
+                        new ExecutorCompletionService<List<SortableEntry>>(executor);
+                int chunks = 0;
+                for (int i = 0; i < activities.size(); i += CHUNK_SIZE) {
+                    completion.submit(createChunk(activities.subList(i,
+                            Math.min(i + CHUNK_SIZE, activities.size())), diff));
+                    chunks++;
+                }
+                for (int i = 0; i < chunks; i++) {
+                    if (isCancelled()) return null;
+                    List<SortableEntry> chunk = completion.take().get();
+                    for (SortableEntry se : chunk) {
+                        entries.add(se.entry);
+                    }
+                    if (streaming) {
+                        sorted = merge(sorted, chunk);
+                        publish(mState, this, sorted, false);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return null;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error loading labels: " + e.getMessage());
+                return null;
+            } finally {
+                executor.shutdownNow();
+            }
+
+            catalog.update(diff, entries);
+            publish(mState, this, sort(catalog.getEntries()), true);
+            if (DEBUG) Log.d(TAG, "Catalog " + mState.mode + " refreshed in " +
+                    (System.currentTimeMillis() - startMs) + "ms");
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            onFinished();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            onFinished();
+        }
+
+        private void onFinished() {
+            // loader that did not publish complete catalog failed; retry on next use
+            if (mState.loader != this) return;
+            mState.loader = null;
+            mState.stale = true;
+            mState.complete = true;
+            if (mState.snapshot == null) {
+                mState.snapshot = Collections.emptyList();
+            }
+            for (CatalogListener listener : new ArrayList<CatalogListener>(mState.listeners)) {
+                listener.onCatalogChanged(mState.mode, mState.snapshot, true);
+            }
+        }
+
+        private Callable<List<SortableEntry>> createChunk(final List<ResolveInfo> activities,
+                final AppCatalog.Diff diff) {
+            return new Callable<List<SortableEntry>>() {
+                @Override
+                public List<SortableEntry> call() {
+                    // collator is not thread safe
+                    final Collator collator = Collator.getInstance();
+                    List<SortableEntry> chunk = new ArrayList<SortableEntry>(activities.size());
+                    for (ResolveInfo ri : activities) {
+                        if (Thread.currentThread().isInterrupted()) break;
+                        final String packageName = ri.activityInfo.packageName;
+                        AppCatalog.Entry entry = new AppCatalog.Entry(
+                                new ComponentName(packageName, ri.activityInfo.name),
+                                ri.loadLabel(mPm).toString(),
+                                diff.getLastUpdateTime(packageName));
+                        chunk.add(new SortableEntry(entry, collator));
+                    }
+                    Collections.sort(chunk, sComparator);
+                    return chunk;
+                }
+            };
+        }
+    }
+}
@@ -22,7 +22,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -31,31 +30,34 @@ import com.ceco.wakegestures.TorchService;
 import com.ceco.wakegestures.Utils;
 import com.ceco.wakegestures.WakeGestureSettings.SettingsFragment;
 import com.ceco.wakegestures.WakeGestureSettings.SettingsFragment.ShortcutHandler;
+import com.ceco.wakegestures.adapters.IAsyncIconListAdapterItem;
 import com.ceco.wakegestures.adapters.IIconListAdapterItem;
 import com.ceco.wakegestures.adapters.IconListAdapter;
 
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.BitmapFactory;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.ShapeDrawable;
 import android.os.AsyncTask;
 import android.preference.DialogPreference;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
-import android.util.LruCache;
+import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.KeyEvent;
@@ -78,6 +80,7 @@ public class AppPickerPreference extends DialogPreference
                                             OnItemSelectedListener,
                                             View.OnClickListener {
     private static final String TAG = "WG:AppPickerPreference";
+    private static final boolean DEBUG = false;
 
     public static final int MODE_APP = 0;
     public static final int MODE_SHORTCUT = 1;
@@ -89,6 +92,8 @@ public class AppPickerPreference extends DialogPreference
     public static final String ACTION_MEDIA_CONTROL = "wakegestures.intent.action.MEDIA_CONTROL";
     public static final String EXTRA_MC_KEYCODE = "mediaControlKeycode";
     public static final String ACTION_SCREEN_ON = "wakegestures.intent.action.SCREEN_ON";
+    public static final String ACTION_MACRO = "wakegestures.intent.action.MACRO";
+    public static final String EXTRA_MACRO_STEPS = "macroSteps";
 
     public static final String EXTRA_KEEP_SCREEN_OFF = "keepScreenOff";
 
@@ -100,6 +105,8 @@ public class AppPickerPreference extends DialogPreference
     private EditText mSearch;
     private ProgressBar mProgressBar;
     private AsyncTask<Void, Void, ArrayList<IIconListAdapterItem>> mAsyncTask;
+    private int mCatalogMode = -1;
+    private long mDataStartTimeMs;
     private String mDefaultSummaryText;
     private int mAppIconSizePx;
     private PackageManager mPackageManager;
@@ -110,18 +117,16 @@ public class AppPickerPreference extends DialogPreference
     private AppInfo mAppInfo;
     private int mAppIconPreviewSizePx;
     private Dialog mIconPickerDialog;
+    private Dialog mMacroDialog;
+    // macro being built; while set, items picked from the list become its steps
+    private MacroAction mMacro;
+    private final List<String> mMacroStepValues = new ArrayList<String>();
+    private final List<String> mMacroStepLabels = new ArrayList<String>();
+    private final List<Boolean> mMacroStepParallel = new ArrayList<Boolean>();
     private boolean mIconPickerEnabled = true;
 
-    private static LruCache<String, BitmapDrawable> sAppIconCache;
-    static {
-        final int cacheSize = Math.min((int)Runtime.getRuntime().maxMemory() / 6, 2097152);
-        sAppIconCache = new LruCache<String, BitmapDrawable>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, BitmapDrawable d) {
-                return d.getBitmap().getByteCount();
-            }
-        };
-    }
+    private IconCache mIconCache;
+    private ShapeDrawable mIconPlaceholder;
 
     class AppInfo {
         String name;
@@ -142,6 +147,11 @@ public class AppPickerPreference extends DialogPreference
         mAppIconPreviewSizePx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 60, 
                 mResources.getDisplayMetrics());
         mPackageManager = mContext.getPackageManager();
+        mIconCache = IconCache.getInstance(mContext);
+        mIconPlaceholder = new ShapeDrawable();
+        mIconPlaceholder.setIntrinsicWidth(mAppIconSizePx);
+        mIconPlaceholder.setIntrinsicHeight(mAppIconSizePx);
+        mIconPlaceholder.getPaint().setColor(Color.TRANSPARENT);
         mMode = MODE_APP;
         mAppInfo = new AppInfo();
 
@@ -200,8 +210,11 @@ public class AppPickerPreference extends DialogPreference
     protected void onBindDialogView(View view) {
         super.onBindDialogView(view);
 
+        AppCatalogManager.getInstance().acquire(mContext);
+
         mListView = (ListView) view.findViewById(R.id.icon_list);
         mListView.setOnItemClickListener(this);
+        if (DEBUG) mListView.setOnScrollListener(new IconListAdapter.FlingFrameMonitor());
 
         mSearch = (EditText) view.findViewById(R.id.input_search);
         mSearch.addTextChangedListener(new TextWatcher() {
@@ -246,11 +259,20 @@ public class AppPickerPreference extends DialogPreference
             mAsyncTask.cancel(true);
         }
         mAsyncTask = null;
+        unsubscribeCatalog();
+        AppCatalogManager.getInstance().release();
+        if (DEBUG) Log.d(TAG, mIconCache.toString());
 
         if (mIconPickerDialog != null && mIconPickerDialog.isShowing()) {
             mIconPickerDialog.dismiss();
         }
         mIconPickerDialog = null;
+
+        if (mMacroDialog != null && mMacroDialog.isShowing()) {
+            mMacroDialog.dismiss();
+        }
+        mMacroDialog = null;
+        mMacro = null;
     }
 
     @Override
@@ -315,75 +337,93 @@ public class AppPickerPreference extends DialogPreference
     }
 
     private void setData() {
-        mAsyncTask = new AsyncTask<Void,Void,ArrayList<IIconListAdapterItem>>() {
-            @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-
-                mListView.setVisibility(View.INVISIBLE);
-                mSearch.setVisibility(View.GONE);
-                mProgressBar.setVisibility(View.VISIBLE);
-            }
+        if (mAsyncTask != null && mAsyncTask.getStatus() == AsyncTask.Status.RUNNING) {
+            mAsyncTask.cancel(true);
+        }
+        mAsyncTask = null;
+        unsubscribeCatalog();
+
+        mDataStartTimeMs = System.currentTimeMillis();
+        mListView.setAdapter(null);
+        mListView.setVisibility(View.INVISIBLE);
+        mSearch.setVisibility(View.GONE);
+        mProgressBar.setVisibility(View.VISIBLE);
+
+        if (mMode != MODE_ACTION) {
+            // apps and shortcuts come from catalog shared by all pickers
+            mCatalogMode = mMode;
+            AppCatalogManager.getInstance().subscribe(mCatalogMode, mCatalogListener);
+            return;
+        }
 
+        mAsyncTask = new AsyncTask<Void,Void,ArrayList<IIconListAdapterItem>>() {
             @Override
             protected ArrayList<IIconListAdapterItem> doInBackground(Void... arg0) {
                 ArrayList<IIconListAdapterItem> itemList = new ArrayList<IIconListAdapterItem>();
-                List<ResolveInfo> appList = new ArrayList<ResolveInfo>();
-
-                if (mMode == MODE_ACTION) {
-                    itemList.add(new AppItem(mContext.getString(R.string.app_picker_none), null));
-                    itemList.add(new UnlockAction());
-                    itemList.add(new TorchAction());
-                    itemList.add(new MediaAction(R.string.media_control_previous,
-                            R.drawable.ic_action_av_previous, KeyEvent.KEYCODE_MEDIA_PREVIOUS));
-                    itemList.add(new MediaAction(R.string.media_control_next,
-                            R.drawable.ic_action_av_next, KeyEvent.KEYCODE_MEDIA_NEXT));
-                    itemList.add(new ScreenOnAction());
-                } else {
-                    List<PackageInfo> packages = mPackageManager.getInstalledPackages(0);
-                    Intent mainIntent = new Intent();
-                    if (mMode == MODE_APP) {
-                        mainIntent.setAction(Intent.ACTION_MAIN);
-                        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-                    } else if (mMode == MODE_SHORTCUT) {
-                        mainIntent.setAction(Intent.ACTION_CREATE_SHORTCUT);
-                    }
-                    for(PackageInfo pi : packages) {
-                        if (this.isCancelled()) break;
-                        mainIntent.setPackage(pi.packageName);
-                        List<ResolveInfo> activityList = mPackageManager.queryIntentActivities(mainIntent, 0);
-                        for(ResolveInfo ri : activityList) {
-                            appList.add(ri);
-                        }
-                    }
-    
-                    Collections.sort(appList, new ResolveInfo.DisplayNameComparator(mPackageManager));
-                    itemList.add(mMode == MODE_SHORTCUT ? 
-                            new ShortcutItem(mContext.getString(R.string.app_picker_none), null) :
-                            new AppItem(mContext.getString(R.string.app_picker_none), null));
-                    for (ResolveInfo ri : appList) {
-                        if (this.isCancelled()) break;
-                        String appName = ri.loadLabel(mPackageManager).toString();
-                        IIconListAdapterItem ai = mMode == MODE_SHORTCUT ?
-                                new ShortcutItem(appName, ri) : new AppItem(appName, ri);
-                        itemList.add(ai);
-                    }
-                }
-
+                itemList.add(new AppItem(mContext.getString(R.string.app_picker_none), null));
+                itemList.add(new UnlockAction());
+                itemList.add(new TorchAction());
+                itemList.add(new MediaAction(R.string.media_control_previous,
+                        R.drawable.ic_action_av_previous, KeyEvent.KEYCODE_MEDIA_PREVIOUS));
+                itemList.add(new MediaAction(R.string.media_control_next,
+                        R.drawable.ic_action_av_next, KeyEvent.KEYCODE_MEDIA_NEXT));
+                itemList.add(new ScreenOnAction());
+                itemList.add(new MacroAction());
                 return itemList;
             }
 
             @Override
             protected void onPostExecute(ArrayList<IIconListAdapterItem> result) {
-                mProgressBar.setVisibility(View.GONE);
-                mSearch.setVisibility(View.VISIBLE);
-                mListView.setAdapter(new IconListAdapter(mContext, result));
-                ((IconListAdapter)mListView.getAdapter()).notifyDataSetChanged();
-                mListView.setVisibility(View.VISIBLE);
+                setItems(result, true);
             }
         }.execute();
     }
 
+    private void unsubscribeCatalog() {
+        if (mCatalogMode >= 0) {
+            AppCatalogManager.getInstance().unsubscribe(mCatalogMode, mCatalogListener);
+            mCatalogMode = -1;
+        }
+    }
+
+    private AppCatalogManager.CatalogListener mCatalogListener = new AppCatalogManager.CatalogListener() {
+        @Override
+        public void onCatalogChanged(int mode, List<AppCatalog.Entry> entries, boolean complete) {
+            List<IIconListAdapterItem> items = new ArrayList<IIconListAdapterItem>(entries.size() + 1);
+            final String noneText = mContext.getString(R.string.app_picker_none);
+            items.add(mode == MODE_SHORTCUT ? new ShortcutItem(noneText, null) : new AppItem(noneText, null));
+            for (AppCatalog.Entry entry : entries) {
+                items.add(createItem(entry, mode));
+            }
+            setItems(items, complete);
+        }
+    };
+
+    private void setItems(List<IIconListAdapterItem> items, boolean complete) {
+        IconListAdapter adapter = (IconListAdapter) mListView.getAdapter();
+        if (adapter == null) {
+            adapter = new IconListAdapter(mContext, items);
+            adapter.setIconPlaceholder(mIconPlaceholder);
+            mListView.setAdapter(adapter);
+        } else {
+            adapter.setItems(items);
+        }
+        mListView.setVisibility(View.VISIBLE);
+        if (complete) {
+            mProgressBar.setVisibility(View.GONE);
+            mSearch.setVisibility(View.VISIBLE);
+            if (DEBUG) Log.d(TAG, items.size() + " items ready in " +
+                    (System.currentTimeMillis() - mDataStartTimeMs) + "ms");
+        }
+    }
+
+    private AppItem createItem(AppCatalog.Entry entry, int mode) {
+        AppItem ai = mode == MODE_SHORTCUT ?
+                new ShortcutItem(entry.label, entry.component) : new AppItem(entry.label, entry.component);
+        ai.mIconKey = entry.iconKey;
+        return ai;
+    }
+
     private void setValue(String value) {
         persistString(value);
         mAppInfo = getAppInfoFromValue(value);
@@ -396,7 +436,14 @@ public class AppPickerPreference extends DialogPreference
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         IIconListAdapterItem item = (IIconListAdapterItem) parent.getItemAtPosition(position);
-        if (mMode == MODE_APP || mMode == MODE_ACTION) {
+        if (item instanceof MacroAction) {
+            if (mMacro == null) {
+                startMacro((MacroAction) item);
+            }
+            showMacroBuilder();
+        } else if (mMacro != null) {
+            addMacroStep((AppItem) item);
+        } else if (mMode == MODE_APP || mMode == MODE_ACTION) {
             AppItem ai = (AppItem) item;
             setValue(ai.getValue());
             getDialog().dismiss();
@@ -420,6 +467,102 @@ public class AppPickerPreference extends DialogPreference
         }
     }
 
+    private void startMacro(MacroAction macro) {
+        mMacro = macro;
+        mMacroStepValues.clear();
+        mMacroStepLabels.clear();
+        mMacroStepParallel.clear();
+    }
+
+    /**
+     * Adds app, shortcut or action picked from the list as next macro step
+     */
+    private void addMacroStep(AppItem item) {
+        if (item instanceof ShortcutItem) {
+            ShortcutItem si = (ShortcutItem) item;
+            if (si.getCreateShortcutIntent() == null) return;
+            si.setShortcutCreatedListener(new ShortcutCreatedListener() {
+                @Override
+                public void onShortcutCreated(ShortcutItem sir) {
+                    appendMacroStep(sir);
+                }
+            });
+            sPrefsFragment.obtainShortcut(si);
+        } else if (item.getIntent() != null) {
+            appendMacroStep(item);
+        }
+    }
+
+    private void appendMacroStep(AppItem item) {
+        if (mMacro == null) return;
+        // value is captured now as shortcut items get reused
+        mMacroStepValues.add(item.getValue());
+        mMacroStepLabels.add(item.getAppName());
+        mMacroStepParallel.add(false);
+        showMacroBuilder();
+    }
+
+    /**
+     * Shows steps of macro being built. Tapping step toggles whether it runs concurrently
+     * with adjacent concurrent steps or waits for all previous steps.
+     * Further steps are picked from the list of apps, shortcuts and actions.
+     */
+    private void showMacroBuilder() {
+        final int count = mMacroStepValues.size();
+        AlertDialog.Builder builder = new AlertDialog.Builder(mContext)
+            .setTitle(R.string.macro_builder_title)
+            .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    if (mMacroStepValues.isEmpty()) return;
+                    mMacro.setSteps(mMacroStepValues, mMacroStepLabels, mMacroStepParallel);
+                    setValue(mMacro.getValue());
+                    mMacro = null;
+                    getDialog().dismiss();
+                }
+            })
+            .setNeutralButton(R.string.macro_builder_add_step, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    Toast.makeText(mContext, R.string.macro_builder_pick_hint, Toast.LENGTH_SHORT).show();
+                }
+            })
+            .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    mMacro = null;
+                }
+            });
+
+        if (count == 0) {
+            builder.setMessage(R.string.macro_builder_empty);
+        } else {
+            String[] rows = new String[count + 1];
+            for (int i = 0; i < count; i++) {
+                rows[i] = mResources.getString(R.string.macro_builder_step, i + 1,
+                        mMacroStepLabels.get(i), mResources.getString(mMacroStepParallel.get(i) ?
+                                R.string.macro_step_parallel : R.string.macro_step_sequential));
+            }
+            rows[count] = mResources.getString(R.string.macro_builder_remove_last);
+            builder.setItems(rows, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    if (which < count) {
+                        mMacroStepParallel.set(which, !mMacroStepParallel.get(which));
+                    } else {
+                        mMacroStepValues.remove(count - 1);
+                        mMacroStepLabels.remove(count - 1);
+                        mMacroStepParallel.remove(count - 1);
+                    }
+                    showMacroBuilder();
+                }
+            });
+        }
+
+        mMacroDialog = builder.create();
+        mMacroDialog.show();
+    }
+
     private AppInfo getAppInfoFromValue(String value) {
         AppInfo appInfo = new AppInfo();
         if (value == null) return appInfo;
@@ -474,22 +617,21 @@ public class AppPickerPreference extends DialogPreference
     @Override
     public void onNothingSelected(AdapterView<?> parent) { }
 
-    class AppItem implements IIconListAdapterItem {
+    class AppItem implements IAsyncIconListAdapterItem, IconCache.IconLoader {
         protected String mAppName;
         protected BitmapDrawable mAppIcon;
-        protected ResolveInfo mResolveInfo;
+        protected ComponentName mComponent;
         protected Intent mIntent;
+        protected String mIconKey;
 
         private AppItem() { }
 
-        public AppItem(String appName, ResolveInfo ri) {
+        public AppItem(String appName, ComponentName cn) {
             mAppName = appName;
-            mResolveInfo = ri;
-            if (mResolveInfo != null) {
+            mComponent = cn;
+            if (mComponent != null) {
                 mIntent = new Intent(Intent.ACTION_MAIN);
                 mIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-                ComponentName cn = new ComponentName(mResolveInfo.activityInfo.packageName,
-                        mResolveInfo.activityInfo.name);
                 mIntent.setComponent(cn);
                 mIntent.putExtra("mode", MODE_APP);
             }
@@ -518,24 +660,56 @@ public class AppPickerPreference extends DialogPreference
         }
 
         protected String getKey() {
-            return getValue();
+            return (mIconKey != null ? mIconKey : getValue());
         }
 
         @Override
         public Drawable getIconLeft() {
-            if (mResolveInfo == null) return null;
-
-            if (mAppIcon == null) {
-                final String key = getKey();
-                mAppIcon = sAppIconCache.get(key);
-                if (mAppIcon == null) {
-                    Bitmap bitmap = Utils.drawableToBitmap(mResolveInfo.loadIcon(mPackageManager));
-                    bitmap = Bitmap.createScaledBitmap(bitmap, mAppIconSizePx, mAppIconSizePx, false);
-                    mAppIcon = new BitmapDrawable(mResources, bitmap);
-                    sAppIconCache.put(key, mAppIcon);
+            if (mAppIcon != null) return mAppIcon;
+            if (mComponent == null) return null;
+
+            // not kept by item so that icons evicted from memory tier can be collected
+            return mIconCache.getIcon(getKey(), mAppIconSizePx, this);
+        }
+
+        @Override
+        public Drawable getCachedIconLeft() {
+            if (mAppIcon != null) return mAppIcon;
+            if (mComponent == null) return null;
+            return mIconCache.peekIcon(getKey(), mAppIconSizePx);
+        }
+
+        @Override
+        public boolean hasIconLeft() {
+            return (mAppIcon != null || mComponent != null);
+        }
+
+        @Override
+        public boolean loadIcon(Bitmap target) {
+            Drawable icon = loadIcon(target.getWidth());
+            if (icon == null) return false;
+            Utils.drawDrawable(icon, target);
+            return true;
+        }
+
+        /**
+         * Loads icon from resources of density matching requested size
+         * instead of always using device density
+         */
+        private Drawable loadIcon(int sizePx) {
+            try {
+                ActivityInfo ai = mPackageManager.getActivityInfo(mComponent, 0);
+                final int iconRes = ai.getIconResource();
+                if (iconRes != 0) {
+                    Resources res = mPackageManager.getResourcesForApplication(ai.applicationInfo);
+                    return res.getDrawableForDensity(iconRes, Utils.getIconDensity(sizePx));
                 }
+                return ai.loadIcon(mPackageManager);
+            } catch (NameNotFoundException e) {
+                return mPackageManager.getDefaultActivityIcon();
+            } catch (Resources.NotFoundException e) {
+                return mPackageManager.getDefaultActivityIcon();
             }
-            return mAppIcon;
         }
 
         @Override
@@ -552,13 +726,11 @@ public class AppPickerPreference extends DialogPreference
         private Intent mCreateShortcutIntent;
         private ShortcutCreatedListener mShortcutCreatedListener;
 
-        public ShortcutItem(String appName, ResolveInfo ri) {
+        public ShortcutItem(String appName, ComponentName cn) {
             mAppName = appName;
-            mResolveInfo = ri;
-            if (mResolveInfo != null) {
+            mComponent = cn;
+            if (mComponent != null) {
                 mCreateShortcutIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
-                ComponentName cn = new ComponentName(mResolveInfo.activityInfo.packageName,
-                        mResolveInfo.activityInfo.name);
                 mCreateShortcutIntent.setComponent(cn);
                 // mark intent so we can later identify it comes from GB
                 mCreateShortcutIntent.putExtra("WakeGestures", true);
@@ -571,7 +743,7 @@ public class AppPickerPreference extends DialogPreference
 
         @Override
         protected String getKey() {
-            return mCreateShortcutIntent.toUri(0);
+            return (mIconKey != null ? mIconKey : mCreateShortcutIntent.toUri(0));
         }
 
         @Override
@@ -601,6 +773,10 @@ public class AppPickerPreference extends DialogPreference
 
             if (icon != null) {
                 mAppIcon = new BitmapDrawable(mResources, icon);
+            } else if (getIconLeft() != null) {
+                // own drawable as cached one is shared with list views
+                mAppIcon = new BitmapDrawable(mResources,
+                        ((BitmapDrawable) getIconLeft()).getBitmap());
             }
 
             // process icon
@@ -658,8 +834,8 @@ public class AppPickerPreference extends DialogPreference
         public UnlockAction() {
             super();
             mAppName = mResources.getString(R.string.action_unlock);
-            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(R.drawable.ic_action_unlock));
-            bitmap = Bitmap.createScaledBitmap(bitmap, mAppIconSizePx, mAppIconSizePx, false);
+            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(R.drawable.ic_action_unlock),
+                    mAppIconSizePx, mAppIconSizePx);
             mAppIcon = new BitmapDrawable(mResources, bitmap);
             mIntent.setAction(ACTION_DISMISS_KEYGUARD);
             mIntent.putExtra("iconResName", "ic_action_unlock");
@@ -671,8 +847,8 @@ public class AppPickerPreference extends DialogPreference
         public TorchAction() {
             super();
             mAppName = mResources.getString(R.string.action_toggle_torch);
-            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(R.drawable.ic_action_torch));
-            bitmap = Bitmap.createScaledBitmap(bitmap, mAppIconSizePx, mAppIconSizePx, false);
+            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(R.drawable.ic_action_torch),
+                    mAppIconSizePx, mAppIconSizePx);
             mAppIcon = new BitmapDrawable(mResources, bitmap);
             mIntent.setAction(ACTION_TOGGLE_TORCH);
             mIntent.putExtra("iconResName", "ic_action_torch");
@@ -684,8 +860,8 @@ public class AppPickerPreference extends DialogPreference
         public MediaAction(int nameId, int drawableId, int keyCode) {
             super();
             mAppName = mResources.getString(nameId);
-            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(drawableId));
-            bitmap = Bitmap.createScaledBitmap(bitmap, mAppIconSizePx, mAppIconSizePx, false);
+            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(drawableId),
+                    mAppIconSizePx, mAppIconSizePx);
             mAppIcon = new BitmapDrawable(mResources, bitmap);
             mIntent.setAction(ACTION_MEDIA_CONTROL);
             mIntent.putExtra(EXTRA_MC_KEYCODE, keyCode);
@@ -699,12 +875,41 @@ public class AppPickerPreference extends DialogPreference
         public ScreenOnAction() {
             super();
             mAppName = mResources.getString(R.string.action_screen_on);
-            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(R.drawable.ic_action_screen_on));
-            bitmap = Bitmap.createScaledBitmap(bitmap, mAppIconSizePx, mAppIconSizePx, false);
+            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(R.drawable.ic_action_screen_on),
+                    mAppIconSizePx, mAppIconSizePx);
             mAppIcon = new BitmapDrawable(mResources, bitmap);
             mIntent.setAction(ACTION_SCREEN_ON);
             mIntent.putExtra("iconResName", "ic_action_screen_on");
             mIntent.putExtra("prefLabel", mAppName);
         }
     };
+
+    class MacroAction extends ActionItem {
+        public MacroAction() {
+            super();
+            mAppName = mResources.getString(R.string.action_macro);
+            Bitmap bitmap = Utils.drawableToBitmap(mResources.getDrawable(android.R.drawable.ic_menu_more),
+                    mAppIconSizePx, mAppIconSizePx);
+            mAppIcon = new BitmapDrawable(mResources, bitmap);
+            mIntent.setAction(ACTION_MACRO);
+        }
+
+        /**
+         * Builds macro spec; see ActionMacro
+         */
+        public void setSteps(List<String> values, List<String> labels, List<Boolean> parallel) {
+            StringBuilder spec = new StringBuilder();
+            StringBuilder label = new StringBuilder();
+            for (int i = 0; i < values.size(); i++) {
+                if (spec.length() > 0) {
+                    spec.append('|');
+                    label.append(", ");
+                }
+                spec.append(parallel.get(i) ? "p:" : "s:").append(values.get(i));
+                label.append(labels.get(i));
+            }
+            mIntent.putExtra(EXTRA_MACRO_STEPS, spec.toString());
+            mIntent.putExtra("prefLabel", mResources.getString(R.string.action_macro_label, label));
+        }
+    };
 }
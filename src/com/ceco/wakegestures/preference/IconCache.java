@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures.preference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Two-tier cache of pre-scaled app picker icons
+ *
+ * Memory tier is sized by device memory class. Disk tier keeps scaled icons as PNG files
+ * named by hash of icon key and size. Icon keys contain package update time, so icons
+ * of updated packages are stored under new names while outdated files age out
+ * by least recently used eviction once disk tier exceeds its size limit.
+ *
+ * Icons may be requested from several threads at once.
+ * Icons are rendered and decoded directly at target size. Bitmaps are not pooled: one evicted
+ * from memory tier may still be shown by views or compressed by disk writer, so nothing
+ * can tell when it is safe to reuse and evicted bitmaps are left to GC.
+ */
+public class IconCache {
+    private static final String TAG = "WG:IconCache";
+    private static final boolean DEBUG = false;
+
+    private static final String DIR_NAME = "icons";
+    private static final long MAX_DISK_BYTES = 4 * 1024 * 1024;
+    // fraction of memory class used by memory tier
+    private static final int MEMORY_CLASS_DIVIDER = 16;
+
+    public interface IconLoader {
+        /**
+         * Renders icon into target bitmap of requested size
+         * @return false if icon is not available
+         */
+        boolean loadIcon(Bitmap target);
+    }
+
+    private static IconCache sInstance;
+
+    private final Resources mResources;
+    private final LruCache<String, BitmapDrawable> mMemoryCache;
+    private final File mDir;
+    private final ExecutorService mDiskWriter = Executors.newSingleThreadExecutor();
+    private long mDiskBytes = -1;
+
+    // stats
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mMisses;
+    private long mDiskDecodeTimeNs;
+    private long mLoadTimeNs;
+    private long mAllocatedBytes;
+
+    public static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private IconCache(Context context) {
+        mResources = context.getResources();
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int cacheSize = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVIDER;
+        mMemoryCache = new LruCache<String, BitmapDrawable>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, BitmapDrawable d) {
+                return d.getBitmap().getByteCount();
+            }
+        };
+        if (DEBUG) Log.d(TAG, "Memory tier size: " + cacheSize / 1024 + "KB");
+    }
+
+    /**
+     * Returns icon from memory or disk tier or loads it using loader and stores it in both tiers
+     * @param key stable icon key
+     * @param sizePx size icon is scaled to
+     * @param loader renders icon on cache miss
+     * @return icon or null if loader failed
+     */
+    public BitmapDrawable getIcon(String key, int sizePx, IconLoader loader) {
+        final String cacheKey = getCacheKey(key, sizePx);
+        BitmapDrawable icon = mMemoryCache.get(cacheKey);
+        if (icon != null) {
+            synchronized (this) {
+                mMemoryHits++;
+            }
+            return icon;
+        }
+
+        long startNs = System.nanoTime();
+        final File f = new File(mDir, cacheKey + ".png");
+        Bitmap bitmap = decodeFile(f);
+        if (bitmap != null) {
+            f.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                mDiskHits++;
+                mDiskDecodeTimeNs += System.nanoTime() - startNs;
+            }
+        } else {
+            startNs = System.nanoTime();
+            bitmap = Bitmap.createBitmap(sizePx, sizePx, Config.ARGB_8888);
+            if (!loader.loadIcon(bitmap)) {
+                return null;
+            }
+            synchronized (this) {
+                mMisses++;
+                mLoadTimeNs += System.nanoTime() - startNs;
+            }
+            writeToDisk(f, bitmap);
+        }
+
+        synchronized (this) {
+            mAllocatedBytes += bitmap.getByteCount();
+        }
+        icon = new BitmapDrawable(mResources, bitmap);
+        mMemoryCache.put(cacheKey, icon);
+        return icon;
+    }
+
+    /**
+     * @return icon from memory tier or null if it is not there
+     */
+    public BitmapDrawable peekIcon(String key, int sizePx) {
+        BitmapDrawable icon = mMemoryCache.get(getCacheKey(key, sizePx));
+        if (icon != null) {
+            synchronized (this) {
+                mMemoryHits++;
+            }
+        }
+        return icon;
+    }
+
+    /**
+     * Decodes icon file
+     * @return bitmap or null if file does not exist or cannot be decoded
+     */
+    private Bitmap decodeFile(File f) {
+        if (!f.exists()) return null;
+        return BitmapFactory.decodeFile(f.getAbsolutePath());
+    }
+
+    /**
+     * Creates compact file name safe key from icon key and size
+     */
+    private static String getCacheKey(String key, int sizePx) {
+        // 64-bit FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash) + "_" + sizePx;
+    }
+
+    /**
+     * Compresses bitmap on writer thread. Bitmap is already published at that point, which is
+     * safe as published bitmaps are never modified.
+     */
+    private void writeToDisk(final File f, final Bitmap bitmap) {
+        mDiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDiskBytes < 0) {
+                    mDir.mkdirs();
+                    mDiskBytes = getDiskBytes();
+                }
+                final File tmp = new File(mDir, f.getName() + ".tmp");
+                try {
+                    FileOutputStream fos = new FileOutputStream(tmp);
+                    try {
+                        bitmap.compress(CompressFormat.PNG, 100, fos);
+                    } finally {
+                        fos.close();
+                    }
+                    if (tmp.renameTo(f)) {
+                        mDiskBytes += f.length();
+                    } else {
+                        tmp.delete();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing icon: " + e.getMessage());
+                    tmp.delete();
+                }
+                if (mDiskBytes > MAX_DISK_BYTES) {
+                    trimDisk();
+                }
+            }
+        });
+    }
+
+    private long getDiskBytes() {
+        long bytes = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                bytes += f.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Deletes least recently used files until disk tier fits into 3/4 of its limit
+     */
+    private void trimDisk() {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.valueOf(lastModified[lhs]).compareTo(lastModified[rhs]);
+            }
+        });
+
+        int deleted = 0;
+        for (int i = 0; i < order.length && mDiskBytes > MAX_DISK_BYTES * 3 / 4; i++) {
+            File f = files[order[i]];
+            final long length = f.length();
+            if (f.delete()) {
+                mDiskBytes -= length;
+                deleted++;
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Evicted " + deleted + " icons; disk tier size: " + mDiskBytes / 1024 + "KB");
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int lookups = mMemoryHits + mDiskHits + mMisses;
+        final long avgLoadUs = (mMisses == 0 ? 0 : mLoadTimeNs / mMisses / 1000);
+        final long avgDiskUs = (mDiskHits == 0 ? 0 : mDiskDecodeTimeNs / mDiskHits / 1000);
+        // decoding scaled icon from disk replaces loading and scaling it
+        final long savedMs = (mDiskHits * avgLoadUs - mDiskDecodeTimeNs / 1000) / 1000;
+        return TAG + ": lookups=" + lookups + "; memory hits=" + mMemoryHits +
+                "; disk hits=" + mDiskHits + " (avg " + avgDiskUs + "us)" +
+                "; misses=" + mMisses + " (avg " + avgLoadUs + "us)" +
+                "; hit rate=" + (lookups == 0 ? 0 : (mMemoryHits + mDiskHits) * 100 / lookups) + "%" +
+                "; saved by disk tier~" + savedMs + "ms; allocated=" + mAllocatedBytes / 1024 + "KB";
+    }
+}
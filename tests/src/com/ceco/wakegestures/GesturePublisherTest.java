@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Per client record queues of GesturePublisher. Socket side needs a device
+ * so fan-out is covered at queue level: every client has its own queue and
+ * the one that stops reading overflows without affecting the others.
+ */
+public class GesturePublisherTest {
+    private static final int CAPACITY = 4;
+
+    private static boolean offer(GesturePublisher.RecordQueue queue, int sequence) {
+        return queue.offer(sequence, 1000L * sequence, 2000L * sequence, 1, 2, 3);
+    }
+
+    @Test
+    public void recordLayout() throws InterruptedException {
+        GesturePublisher.RecordQueue queue = new GesturePublisher.RecordQueue(CAPACITY);
+        assertTrue(offer(queue, 7));
+
+        byte[] record = new byte[GesturePublisher.RECORD_SIZE];
+        assertTrue(queue.take(record));
+        ByteBuffer bb = ByteBuffer.wrap(record);
+        assertEquals(GesturePublisher.RECORD_MAGIC, bb.getInt());
+        assertEquals(7, bb.getInt());
+        assertEquals(1, bb.get());
+        assertEquals(2, bb.get());
+        assertEquals(3, bb.get());
+        assertEquals(0, bb.get());
+        assertEquals(7000L, bb.getLong());
+        assertEquals(14000L, bb.getLong());
+    }
+
+    @Test
+    public void slowClientOverflowsAlone() throws InterruptedException {
+        GesturePublisher.RecordQueue slow = new GesturePublisher.RecordQueue(CAPACITY);
+        GesturePublisher.RecordQueue fast = new GesturePublisher.RecordQueue(CAPACITY);
+        byte[] record = new byte[GesturePublisher.RECORD_SIZE];
+
+        for (int seq = 1; seq <= CAPACITY; seq++) {
+            assertTrue(offer(slow, seq));
+            assertTrue(offer(fast, seq));
+            assertTrue(fast.take(record));
+        }
+        // full queue means eviction of the client that stopped reading
+        assertFalse(offer(slow, CAPACITY + 1));
+        assertTrue(offer(fast, CAPACITY + 1));
+        assertEquals(CAPACITY, slow.size());
+        assertEquals(1, fast.size());
+
+        // records still queued are delivered in order
+        for (int seq = 1; seq <= CAPACITY; seq++) {
+            assertTrue(slow.take(record));
+            assertEquals(seq, ByteBuffer.wrap(record).getInt(4));
+        }
+        assertTrue(offer(slow, CAPACITY + 2));
+    }
+
+    @Test
+    public void closeWakesBlockedWriter() throws InterruptedException {
+        final GesturePublisher.RecordQueue queue = new GesturePublisher.RecordQueue(CAPACITY);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean(true);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(queue.take(new byte[GesturePublisher.RECORD_SIZE]));
+                } catch (InterruptedException e) {
+                    // result stays true and fails the test
+                }
+                finished.countDown();
+            }
+        }.start();
+
+        assertFalse(finished.await(100, TimeUnit.MILLISECONDS));
+        queue.close();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertFalse(result.get());
+    }
+
+    @Test
+    public void writerWokenByOffer() throws InterruptedException {
+        final GesturePublisher.RecordQueue queue = new GesturePublisher.RecordQueue(CAPACITY);
+        final CountDownLatch received = new CountDownLatch(1);
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (queue.take(new byte[GesturePublisher.RECORD_SIZE])) {
+                        received.countDown();
+                    }
+                } catch (InterruptedException e) { }
+            }
+        }.start();
+
+        assertTrue(offer(queue, 1));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.size());
+    }
+}
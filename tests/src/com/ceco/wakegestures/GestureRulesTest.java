@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Evaluation of compiled gesture rules and its cost
+ */
+public class GestureRulesTest {
+    private static final int MUSIC = GestureRules.SIGNAL_MUSIC_ACTIVE;
+    private static final int CHARGING = GestureRules.SIGNAL_CHARGING;
+    private static final int LOCKED = GestureRules.SIGNAL_KEYGUARD;
+
+    // rule actions are "default" and "none" so that no intent needs to be parsed
+    private static final String SPEC =
+            "music default|charging,!locked none|time:1320-420 default|!music,locked none";
+
+    @Test
+    public void emptySpec() {
+        assertNull(GestureRules.compile(null, null));
+        assertNull(GestureRules.compile("  ", null));
+    }
+
+    @Test
+    public void invalidRulesAreReported() {
+        List<String> errors = new ArrayList<String>();
+        GestureRules rules = GestureRules.compile(
+                "music default|bogus none|time:1500-10 none|nospace|* none", errors);
+        assertEquals(3, errors.size());
+        assertEquals(2, rules.size());
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        GestureRules rules = GestureRules.compile(SPEC, null);
+        assertEquals(4, rules.size());
+        assertEquals(MUSIC | CHARGING | LOCKED, rules.getRequiredSignals());
+        assertTrue(rules.requiresTime());
+
+        assertEquals(GestureRules.RESULT_DEFAULT, rules.evaluate(MUSIC | CHARGING, 600));
+        assertEquals(GestureRules.RESULT_NONE, rules.evaluate(CHARGING, 600));
+        assertEquals(GestureRules.RESULT_NONE, rules.evaluate(LOCKED, 600));
+        assertEquals(GestureRules.RESULT_NONE, rules.evaluate(CHARGING | LOCKED, 600));
+        assertEquals(GestureRules.RESULT_DEFAULT, rules.evaluate(CHARGING | LOCKED, 1400));
+        assertEquals(GestureRules.RESULT_NO_MATCH, rules.evaluate(0, 600));
+    }
+
+    @Test
+    public void timeRangeWrapsMidnight() {
+        GestureRules rules = GestureRules.compile("time:1320-420 default", null);
+        assertEquals(GestureRules.RESULT_DEFAULT, rules.evaluate(0, 1320));
+        assertEquals(GestureRules.RESULT_DEFAULT, rules.evaluate(0, 0));
+        assertEquals(GestureRules.RESULT_DEFAULT, rules.evaluate(0, 419));
+        assertEquals(GestureRules.RESULT_NO_MATCH, rules.evaluate(0, 420));
+        assertEquals(GestureRules.RESULT_NO_MATCH, rules.evaluate(0, 1319));
+
+        rules = GestureRules.compile("time:480-1020 none", null);
+        assertEquals(GestureRules.RESULT_NONE, rules.evaluate(0, 480));
+        assertEquals(GestureRules.RESULT_NO_MATCH, rules.evaluate(0, 1020));
+    }
+
+    /**
+     * Rule evaluation is on gesture path so it has to cost microseconds at most
+     */
+    @Test
+    public void evaluationBenchmark() {
+        GestureRules rules = GestureRules.compile(SPEC, null);
+        final int iterations = 1000000;
+        int sink = 0;
+        // warm up JIT
+        for (int i = 0; i < iterations; i++) {
+            sink += rules.evaluate(i & 7, i % 1440);
+        }
+
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += rules.evaluate(i & 7, i % 1440);
+        }
+        final long avgNs = (System.nanoTime() - startNs) / iterations;
+        System.out.println("GestureRules.evaluate: avg " + avgNs + "ns (" + sink + ")");
+        assertTrue("Rule evaluation too slow: " + avgNs + "ns", avgNs < 10000);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Detection and event mapping of gesture sources against fake sysfs/dev trees
+ */
+public class GestureSourceTest {
+    private static final int EV_SYN = 0;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = mTmp.newFolder("root");
+    }
+
+    private void write(String path, String content) throws IOException {
+        File f = new File(mRoot, path);
+        f.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(f);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void addInputDevice(String classPath, String dir, String name, String event)
+            throws IOException {
+        write(classPath + "/" + dir + "/name", name + "\n");
+        write(classPath + "/" + dir + "/" + event + "/dev", "13:64\n");
+        write("/dev/input/" + event, "");
+    }
+
+    private void setUpElementalX(int sweep, int doubletap) throws IOException {
+        write("/sys/android_touch/wake_gestures", "1\n");
+        write("/sys/android_touch/sweep2wake", sweep + "\n");
+        write("/sys/android_touch/doubletap2wake", doubletap + "\n");
+        addInputDevice("/sys/devices/virtual/input", "input3", "wake_gesture", "event3");
+    }
+
+    @Test
+    public void emptyRootHasNoSource() {
+        assertEquals(0, GestureSource.detectAll(mRoot).length);
+        assertNull(GestureSource.detect(mRoot));
+    }
+
+    @Test
+    public void detectsElementalX() throws IOException {
+        setUpElementalX(5, 1);
+
+        GestureSource source = GestureSource.detect(mRoot);
+        assertTrue(source instanceof ElementalXGestureSource);
+        assertEquals(new File(mRoot, "/dev/input/event3"), source.getInputDevice());
+    }
+
+    @Test
+    public void elementalXDisabled() throws IOException {
+        setUpElementalX(15, 1);
+        write("/sys/android_touch/wake_gestures", "0\n");
+
+        assertNull(GestureSource.detect(mRoot));
+    }
+
+    @Test
+    public void elementalXGestureSwitches() throws IOException {
+        // sweep2wake is bit mask of sweep gestures
+        setUpElementalX(WakeGesture.SWEEP_RIGHT.getBitValue() | WakeGesture.SWEEP_UP.getBitValue(), 0);
+
+        GestureSource source = new ElementalXGestureSource(mRoot);
+        assertTrue(source.isGestureEnabled(WakeGesture.SWEEP_RIGHT));
+        assertTrue(source.isGestureEnabled(WakeGesture.SWEEP_UP));
+        assertFalse(source.isGestureEnabled(WakeGesture.SWEEP_LEFT));
+        assertFalse(source.isGestureEnabled(WakeGesture.SWEEP_DOWN));
+        assertFalse(source.isGestureEnabled(WakeGesture.DOUBLETAP));
+        assertFalse(source.isGestureEnabled(WakeGesture.UNKNOWN));
+    }
+
+    @Test
+    public void elementalXMapping() {
+        GestureSource source = new ElementalXGestureSource(mRoot);
+        assertEquals(WakeGesture.SWEEP_RIGHT.ordinal(), source.mapEvent(GestureSource.EV_REL, 11, 1));
+        assertEquals(WakeGesture.SWEEP_LEFT.ordinal(), source.mapEvent(GestureSource.EV_REL, 11, 2));
+        assertEquals(WakeGesture.SWEEP_UP.ordinal(), source.mapEvent(GestureSource.EV_REL, 11, 3));
+        assertEquals(WakeGesture.SWEEP_DOWN.ordinal(), source.mapEvent(GestureSource.EV_REL, 11, 4));
+        assertEquals(WakeGesture.DOUBLETAP.ordinal(), source.mapEvent(GestureSource.EV_REL, 11, 5));
+        assertEquals(-1, source.mapEvent(GestureSource.EV_REL, 11, 6));
+        assertEquals(-1, source.mapEvent(GestureSource.EV_REL, 0, 1));
+        assertEquals(-1, source.mapEvent(GestureSource.EV_KEY, 11, 1));
+        assertEquals(-1, source.mapEvent(EV_SYN, 0, 0));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void elementalXWithoutInputDevice() throws IOException {
+        write("/sys/android_touch/wake_gestures", "1\n");
+
+        GestureSource source = new ElementalXGestureSource(mRoot);
+        assertTrue(source.isSupported());
+        source.getInputDevice();
+    }
+
+    @Test
+    public void elementalXInputDeviceMatchedByName() throws IOException {
+        setUpElementalX(15, 1);
+        addInputDevice("/sys/devices/virtual/input", "input1", "some_keys", "event1");
+
+        GestureSource source = new ElementalXGestureSource(mRoot);
+        assertEquals(new File(mRoot, "/dev/input/event3"), source.getInputDevice());
+    }
+
+    @Test
+    public void detectsEvdev() throws IOException {
+        addInputDevice("/sys/class/input", "input5", "wake_gesture_keys", "event5");
+
+        GestureSource source = GestureSource.detect(mRoot);
+        assertTrue(source instanceof EvdevGestureSource);
+        assertEquals(new File(mRoot, "/dev/input/event5"), source.getInputDevice());
+        assertTrue(source.isGestureEnabled(WakeGesture.DOUBLETAP));
+        assertFalse(source.isGestureEnabled(WakeGesture.UNKNOWN));
+    }
+
+    @Test
+    public void evdevDisabledBySwitch() throws IOException {
+        addInputDevice("/sys/class/input", "input5", "wake_gesture_keys", "event5");
+        write("/sys/android_touch/wake_gestures", "0\n");
+
+        assertFalse(new EvdevGestureSource(mRoot).isSupported());
+    }
+
+    @Test
+    public void evdevUnknownDevice() throws IOException {
+        addInputDevice("/sys/class/input", "input5", "gpio-keys", "event5");
+
+        GestureSource source = new EvdevGestureSource(mRoot);
+        assertFalse(source.isSupported());
+        assertEquals(-1, source.mapEvent(GestureSource.EV_KEY, 106, 1));
+    }
+
+    @Test
+    public void evdevMapping() throws IOException {
+        addInputDevice("/sys/class/input", "input5", "wake_gesture_keys", "event5");
+
+        GestureSource source = new EvdevGestureSource(mRoot);
+        assertEquals(WakeGesture.SWEEP_UP.ordinal(), source.mapEvent(GestureSource.EV_KEY, 103, 1));
+        assertEquals(WakeGesture.SWEEP_LEFT.ordinal(), source.mapEvent(GestureSource.EV_KEY, 105, 1));
+        assertEquals(WakeGesture.SWEEP_RIGHT.ordinal(), source.mapEvent(GestureSource.EV_KEY, 106, 1));
+        assertEquals(WakeGesture.SWEEP_DOWN.ordinal(), source.mapEvent(GestureSource.EV_KEY, 108, 1));
+        assertEquals(WakeGesture.DOUBLETAP.ordinal(), source.mapEvent(GestureSource.EV_KEY, 143, 1));
+        // key release and repeat are not gestures
+        assertEquals(-1, source.mapEvent(GestureSource.EV_KEY, 106, 0));
+        assertEquals(-1, source.mapEvent(GestureSource.EV_KEY, 106, 2));
+        assertEquals(-1, source.mapEvent(GestureSource.EV_REL, 11, 1));
+    }
+
+    @Test
+    public void elementalXPreferredOverEvdev() throws IOException {
+        setUpElementalX(15, 1);
+        addInputDevice("/sys/class/input", "input5", "wake_gesture_keys", "event5");
+
+        GestureSource[] sources = GestureSource.detectAll(mRoot);
+        assertEquals(2, sources.length);
+        assertTrue(sources[0] instanceof ElementalXGestureSource);
+        assertTrue(sources[1] instanceof EvdevGestureSource);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Template loading, matching and matching cost of ShapeRecognizer
+ */
+public class ShapeRecognizerTest {
+    private static final String TEMPLATES =
+            "# letters and lines\n" +
+            "SWEEP_RIGHT 0,0 100,0\n" +
+            "SWEEP_DOWN 0,0 0,100\n" +
+            // C drawn counter-clockwise from top right
+            "SWEEP_LEFT 100,0 50,0 10,20 0,50 10,80 50,100 100,100\n" +
+            // V
+            "SWEEP_UP 0,0 50,100 100,0\n" +
+            // Z
+            "DOUBLETAP 0,0 100,0 0,100 100,100\n";
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private ShapeRecognizer mRecognizer;
+
+    @Before
+    public void setUp() throws IOException {
+        mRecognizer = ShapeRecognizer.load(write(TEMPLATES));
+    }
+
+    private File write(String content) throws IOException {
+        File f = mTmp.newFile();
+        FileWriter writer = new FileWriter(f);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return f;
+    }
+
+    private int draw(float scale, float... points) {
+        feed(scale, points);
+        return mRecognizer.endStroke();
+    }
+
+    /**
+     * Feeds polyline as touchscreen would: densely sampled, offset and scaled
+     */
+    private void feed(float scale, float... points) {
+        mRecognizer.beginStroke();
+        for (int i = 0; i + 3 < points.length; i += 2) {
+            for (int step = 0; step < 20; step++) {
+                final float t = step / 20f;
+                mRecognizer.addPoint(300 + scale * (points[i] + t * (points[i + 2] - points[i])),
+                        500 + scale * (points[i + 1] + t * (points[i + 3] - points[i + 1])));
+            }
+        }
+        mRecognizer.addPoint(300 + scale * points[points.length - 2],
+                500 + scale * points[points.length - 1]);
+    }
+
+    @Test
+    public void loadsValidTemplatesOnly() throws IOException {
+        assertEquals(5, mRecognizer.getTemplateCount());
+        assertTrue(mRecognizer.hasTemplate(WakeGesture.DOUBLETAP));
+
+        ShapeRecognizer r = ShapeRecognizer.load(write("SWEEP_UP 0,0 0,100\nSWEEP_DOWN 5,5\n\n# x\n"));
+        assertEquals(1, r.getTemplateCount());
+        assertFalse(r.hasTemplate(WakeGesture.SWEEP_DOWN));
+        assertNull(ShapeRecognizer.load(write("# nothing\n")));
+    }
+
+    @Test
+    public void matchesScaledShapes() {
+        assertEquals(WakeGesture.SWEEP_RIGHT.ordinal(), draw(3, 0, 0, 100, 2));
+        assertEquals(WakeGesture.SWEEP_DOWN.ordinal(), draw(2, 0, 0, 3, 100));
+        assertEquals(WakeGesture.SWEEP_UP.ordinal(), draw(4, 0, 0, 48, 100, 100, 5));
+        assertEquals(WakeGesture.DOUBLETAP.ordinal(), draw(2, 0, 0, 100, 0, 0, 100, 100, 100));
+        assertEquals(WakeGesture.SWEEP_LEFT.ordinal(),
+                draw(3, 100, 0, 50, 0, 10, 20, 0, 50, 10, 80, 50, 100, 100, 100));
+    }
+
+    @Test
+    public void rejectsUnknownAndShortStrokes() {
+        // orientation matters: line drawn leftwards is not SWEEP_RIGHT
+        assertEquals(-1, draw(3, 100, 0, 0, 0));
+        mRecognizer.beginStroke();
+        mRecognizer.addPoint(0, 0);
+        mRecognizer.addPoint(10, 0);
+        assertEquals(-1, mRecognizer.endStroke());
+    }
+
+    /**
+     * Matching runs on input thread when finger lifts so it has to stay well below a millisecond
+     */
+    @Test
+    public void matchBenchmark() {
+        final int iterations = 20000;
+        final float[] shape = new float[] { 100, 0, 50, 0, 10, 20, 0, 50, 10, 80, 50, 100, 100, 100 };
+        int sink = 0;
+        // warm up JIT
+        for (int i = 0; i < iterations; i++) {
+            sink += draw(3, shape);
+        }
+
+        long totalNs = 0;
+        for (int i = 0; i < iterations; i++) {
+            feed(3 + (i % 7) / 10f, shape);
+            final long startNs = System.nanoTime();
+            sink += mRecognizer.endStroke();
+            totalNs += System.nanoTime() - startNs;
+        }
+        final long avgNs = totalNs / iterations;
+        System.out.println("ShapeRecognizer.endStroke: avg " + avgNs + "ns for " +
+                mRecognizer.getTemplateCount() + " templates (" + sink + ")");
+        assertTrue("Shape matching too slow: " + avgNs + "ns", avgNs < 500000);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * LED lookup and brightness writes of SysfsLedTorchBackend against fake sysfs tree
+ */
+public class SysfsLedTorchBackendTest {
+    private static final String LEDS = "/sys/class/leds/";
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = mTmp.newFolder("root");
+    }
+
+    private File write(String path, String content) throws IOException {
+        File f = new File(mRoot, path);
+        f.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(f);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return f;
+    }
+
+    private String read(String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(mRoot, path)));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void addLed(String name, String maxBrightness) throws IOException {
+        write(LEDS + name + "/brightness", "0\n");
+        if (maxBrightness != null) {
+            write(LEDS + name + "/max_brightness", maxBrightness + "\n");
+        }
+    }
+
+    @Test
+    public void noLeds() throws IOException {
+        assertNull(SysfsLedTorchBackend.find(mRoot));
+        addLed("lcd-backlight", "255");
+        addLed("red", "255");
+        assertNull(SysfsLedTorchBackend.find(mRoot));
+    }
+
+    @Test
+    public void torchPreferredOverFlash() throws IOException {
+        addLed("flash_0", "1000");
+        addLed("led:torch_0", "200");
+
+        assertEquals("SysfsLed:led:torch_0", SysfsLedTorchBackend.find(mRoot).getName());
+    }
+
+    @Test
+    public void flashUsedWithoutTorch() throws IOException {
+        addLed("lcd-backlight", "255");
+        addLed("LED-Flash", "15");
+
+        assertEquals("SysfsLed:LED-Flash", SysfsLedTorchBackend.find(mRoot).getName());
+    }
+
+    @Test
+    public void ledWithoutBrightnessSkipped() throws IOException {
+        write(LEDS + "torch/max_brightness", "200\n");
+        assertNull(SysfsLedTorchBackend.find(mRoot));
+
+        addLed("flash", "15");
+        assertEquals("SysfsLed:flash", SysfsLedTorchBackend.find(mRoot).getName());
+    }
+
+    @Test
+    public void readOnlyBrightnessSkipped() throws IOException {
+        addLed("torch", "200");
+        addLed("flash", "15");
+        File brightness = new File(mRoot, LEDS + "torch/brightness");
+        brightness.setWritable(false, false);
+        // permissions do not apply when tests run as root
+        if (brightness.canWrite()) return;
+
+        assertEquals("SysfsLed:flash", SysfsLedTorchBackend.find(mRoot).getName());
+    }
+
+    @Test
+    public void writesMaxBrightness() throws Exception {
+        addLed("torch", "200");
+        SysfsLedTorchBackend backend = SysfsLedTorchBackend.find(mRoot);
+
+        backend.setTorch(true);
+        assertEquals("200", read(LEDS + "torch/brightness"));
+        backend.setTorch(false);
+        assertEquals("0", read(LEDS + "torch/brightness"));
+    }
+
+    @Test
+    public void missingOrInvalidMaxBrightness() throws Exception {
+        addLed("torch", null);
+        SysfsLedTorchBackend.find(mRoot).setTorch(true);
+        assertEquals("1", read(LEDS + "torch/brightness"));
+
+        write(LEDS + "torch/max_brightness", "0\n");
+        SysfsLedTorchBackend.find(mRoot).setTorch(true);
+        assertEquals("1", read(LEDS + "torch/brightness"));
+
+        write(LEDS + "torch/max_brightness", "n/a\n");
+        SysfsLedTorchBackend.find(mRoot).setTorch(true);
+        assertEquals("1", read(LEDS + "torch/brightness"));
+    }
+}
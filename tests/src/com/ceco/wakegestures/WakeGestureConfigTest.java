@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Peter Gregus (C3C076@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceco.wakegestures;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import android.content.Intent;
+
+import com.ceco.wakegestures.WakeGestureProcessor.WakeGesture;
+
+/**
+ * Immutability of configuration snapshots and their atomic swap under concurrent readers
+ */
+public class WakeGestureConfigTest {
+    private static final int READERS = 4;
+    private static final int VERSIONS = 20000;
+
+    private static final WakeGesture[] GESTURES = new WakeGesture[] {
+        WakeGesture.SWEEP_RIGHT, WakeGesture.SWEEP_LEFT, WakeGesture.SWEEP_UP,
+        WakeGesture.SWEEP_DOWN, WakeGesture.DOUBLETAP
+    };
+
+    private static final GestureRules RULES = GestureRules.compile("music default|* none", null);
+
+    @Test
+    public void builderDoesNotModifyBase() {
+        Intent action = new Intent("a");
+        WakeGestureConfig base = new WakeGestureConfig.Builder()
+                .setAction(WakeGesture.SWEEP_UP, false, action)
+                .build();
+        WakeGestureConfig next = new WakeGestureConfig.Builder(base)
+                .setAction(WakeGesture.SWEEP_UP, false, null)
+                .setAction(WakeGesture.SWEEP_DOWN, true, new Intent("b"))
+                .setPocketModeEnabled(true)
+                .build();
+
+        assertEquals(1, base.getVersion());
+        assertEquals(2, next.getVersion());
+        assertSame(action, base.getAction(WakeGesture.SWEEP_UP, false));
+        assertNull(base.getAction(WakeGesture.SWEEP_DOWN, true));
+        assertTrue(!base.isPocketModeEnabled());
+        assertNull(next.getAction(WakeGesture.SWEEP_UP, false));
+        assertTrue(next.isConfigured(WakeGesture.SWEEP_DOWN, true));
+    }
+
+    /**
+     * Writer publishes snapshots whose every field is derived from version while readers
+     * check each snapshot they grab is consistent and versions never go backwards
+     */
+    @Test
+    public void concurrentSwapStress() throws InterruptedException {
+        final AtomicReference<WakeGestureConfig> ref = new AtomicReference<WakeGestureConfig>(
+                fill(new WakeGestureConfig.Builder(), 1).build());
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(READERS);
+        final AtomicBoolean writerDone = new AtomicBoolean();
+
+        for (int r = 0; r < READERS; r++) {
+            new Thread("ConfigReader" + r) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int lastVersion = 0;
+                        boolean finished = false;
+                        while (!finished && failure.get() == null) {
+                            finished = writerDone.get();
+                            WakeGestureConfig config = ref.get();
+                            String error = check(config);
+                            if (error == null && config.getVersion() < lastVersion) {
+                                error = "version went backwards: " + config.getVersion();
+                            }
+                            if (error != null) {
+                                failure.compareAndSet(null, error);
+                            }
+                            lastVersion = config.getVersion();
+                            reads.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        failure.compareAndSet(null, "interrupted");
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        for (int v = 2; v <= VERSIONS; v++) {
+            WakeGestureConfig next = fill(new WakeGestureConfig.Builder(ref.get()), v).build();
+            assertEquals(v, next.getVersion());
+            ref.set(next);
+        }
+        writerDone.set(true);
+
+        assertTrue("readers did not finish", done.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get(), failure.get());
+        assertTrue(reads.get() > 0);
+    }
+
+    private static WakeGestureConfig.Builder fill(WakeGestureConfig.Builder builder, int version) {
+        // every other gesture changes so that carried over slots are checked as well
+        for (int i = 0; i < GESTURES.length; i++) {
+            if (i % 2 == 0 || version == 1) {
+                builder.setAction(GESTURES[i], false, new Intent("v" + version));
+            }
+            builder.setAction(GESTURES[i], true, new Intent("v" + version));
+            builder.setRules(GESTURES[i], true, version % 2 == 0 ? RULES : null);
+        }
+        builder.setPocketModeEnabled(version % 2 == 0);
+        builder.setActiveMusicRequired(version % 3 == 0);
+        return builder;
+    }
+
+    private static String check(WakeGestureConfig config) {
+        final int version = config.getVersion();
+        final String expected = "v" + version;
+        for (int i = 0; i < GESTURES.length; i++) {
+            Intent single = config.getAction(GESTURES[i], false);
+            // odd slots keep the action of initial version
+            if (!(i % 2 == 0 ? expected : "v1").equals(single.getAction())) {
+                return "single action " + single.getAction() + " in " + expected;
+            }
+            if (!expected.equals(config.getAction(GESTURES[i], true).getAction())) {
+                return "double action mismatch in " + expected;
+            }
+            if ((config.getRules(GESTURES[i], true) != null) != (version % 2 == 0)) {
+                return "rules mismatch in " + expected;
+            }
+        }
+        if (config.isPocketModeEnabled() != (version % 2 == 0)) {
+            return "pocket mode mismatch in " + expected;
+        }
+        if (config.isActiveMusicRequired() != (version % 3 == 0)) {
+            return "active music mismatch in " + expected;
+        }
+        return null;
+    }
+}